@@ -0,0 +1,80 @@
+package com.ontotext.trree.plugin.lucene;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An index build or update running in the background, see {@link Lucene#CREATE_INDEX} with the
+ * <code>"async"</code> value. The last job of each index is kept so that its outcome can be queried.
+ */
+public class BuildJob {
+	public enum State {
+		RUNNING, DONE, FAILED, CANCELLED
+	}
+
+	private final String indexName;
+	private final String operation;
+	private final IndexingProgress progress = new IndexingProgress();
+	private final long startTime = System.currentTimeMillis();
+	private volatile long endTime;
+	private volatile State state = State.RUNNING;
+
+	BuildJob(String indexName, String operation) {
+		this.indexName = indexName;
+		this.operation = operation;
+	}
+
+	public String getIndexName() {
+		return indexName;
+	}
+
+	public IndexingProgress getProgress() {
+		return progress;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	public boolean isRunning() {
+		return state == State.RUNNING;
+	}
+
+	/**
+	 * Asks the job to stop, it is marked as cancelled once it has stopped.
+	 *
+	 * @return false if the job isn't running
+	 */
+	public boolean cancel() {
+		if (!isRunning()) {
+			return false;
+		}
+		progress.cancel();
+		return true;
+	}
+
+	void finish(boolean succeeded) {
+		endTime = System.currentTimeMillis();
+		state = progress.isCancelled() ? State.CANCELLED : succeeded ? State.DONE : State.FAILED;
+	}
+
+	public Map<String, Object> getStatus() {
+		Map<String, Object> status = new LinkedHashMap<String, Object>();
+		status.put("name", indexName);
+		status.put("operation", operation);
+		status.put("state", state.name().toLowerCase());
+		long processed = progress.getProcessed();
+		long total = progress.getTotal();
+		status.put("processed", processed);
+		status.put("total", total);
+		status.put("documents", progress.getDocuments());
+		long elapsed = (endTime != 0 ? endTime : System.currentTimeMillis()) - startTime;
+		status.put("elapsedSeconds", elapsed / 1000);
+		double rate = elapsed > 0 ? processed * 1000.0 / elapsed : 0;
+		status.put("entitiesPerSecond", Math.round(rate));
+		if (isRunning() && rate > 0 && total > processed) {
+			status.put("etaSeconds", Math.round((total - processed) / rate));
+		}
+		return status;
+	}
+}
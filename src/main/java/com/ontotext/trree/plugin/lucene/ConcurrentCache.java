@@ -0,0 +1,95 @@
+package com.ontotext.trree.plugin.lucene;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache bounded by number of entries whose lookups take no lock, for small values that are read on every
+ * query. The eviction is approximate: once the cache is full, a single thread drops the entries that
+ * haven't been read since the previous eviction until a quarter of the cache is free, the other threads
+ * don't wait for it. Keeps hit and miss counters.
+ */
+public class ConcurrentCache<K, V> {
+	private static final class Entry<V> {
+		final V value;
+		// read since the last eviction
+		volatile boolean used;
+
+		Entry(V value) {
+			this.value = value;
+		}
+	}
+
+	private final ConcurrentHashMap<K, Entry<V>> map;
+	private final int maxSize;
+	private final AtomicBoolean evicting = new AtomicBoolean();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public ConcurrentCache(int maxSize) {
+		this.maxSize = maxSize;
+		map = new ConcurrentHashMap<K, Entry<V>>(maxSize);
+	}
+
+	public V get(K key) {
+		Entry<V> entry = map.get(key);
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		if (!entry.used) {
+			// written only once between evictions so that popular entries don't bounce between caches
+			entry.used = true;
+		}
+		return entry.value;
+	}
+
+	public void put(K key, V value) {
+		map.put(key, new Entry<V>(value));
+		if (map.size() > maxSize) {
+			evict();
+		}
+	}
+
+	private void evict() {
+		if (!evicting.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			int target = maxSize - maxSize / 4;
+			// the first pass spares the entries that have been read, the second one takes any
+			for (int pass = 0; pass < 2 && map.size() > target; pass++) {
+				for (Iterator<Entry<V>> it = map.values().iterator(); it.hasNext() && map.size() > target;) {
+					Entry<V> entry = it.next();
+					if (entry.used && pass == 0) {
+						entry.used = false;
+					} else {
+						it.remove();
+					}
+				}
+			}
+		} finally {
+			evicting.set(false);
+		}
+	}
+
+	public void clear() {
+		map.clear();
+	}
+
+	public int size() {
+		return map.size();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+}
@@ -0,0 +1,153 @@
+package com.ontotext.trree.plugin.lucene;
+
+import java.util.Arrays;
+
+/**
+ * In-memory subject-object graph in compressed sparse row form: the objects of all rows are stored
+ * consecutively in a single array and row <code>i</code> spans the range
+ * <code>[offsets[i], offsets[i + 1])</code> of it. Reading a row is a plain array walk and needs no
+ * synchronization.
+ *
+ * The graph is built in two passes over the same statements: the first one counts the objects of each row
+ * with {@link #count(long)}, then {@link #allocate()} reserves the space, the second pass stores the objects
+ * with {@link #add(long, long)} and {@link #complete()} finally sorts the rows and drops duplicates.
+ */
+public class CsrGraph implements MoleculeGraph {
+	/**
+	 * The most objects a graph can hold, the offsets are ints and the objects a single array.
+	 */
+	public static final long MAX_EDGES = Integer.MAX_VALUE - 8;
+
+	private final int[] offsets;
+	private int[] targets;
+	// the number of objects stored in each row while the graph is filled
+	private int[] fill;
+
+	/**
+	 * @param rows the number of rows, i.e. the maximum subject id + 1, must be less than 2^31 - 1
+	 */
+	public CsrGraph(long rows) {
+		offsets = new int[(int) rows + 1];
+	}
+
+	/**
+	 * Returns the memory in bytes needed by a graph of the given size, including the fill counts used while
+	 * it is built.
+	 */
+	public static long requiredMemory(long rows, long edges) {
+		return 4 * (rows + 1) + 4 * rows + 4 * edges;
+	}
+
+	public void count(long row) {
+		offsets[(int) row + 1]++;
+	}
+
+	/**
+	 * Returns the number of objects of a row counted in the first pass, before {@link #allocate()}.
+	 */
+	public int getCount(long row) {
+		return offsets[(int) row + 1];
+	}
+
+	/**
+	 * Returns the number of objects counted in the first pass.
+	 */
+	public long getEdgeCount() {
+		long edges = 0;
+		for (int count : offsets) {
+			edges += count;
+		}
+		return edges;
+	}
+
+	/**
+	 * Allocates the objects once all of them are counted. The offsets become the row starts and each row is
+	 * then filled from its start.
+	 */
+	public void allocate() {
+		for (int i = 1; i < offsets.length; i++) {
+			offsets[i] += offsets[i - 1];
+		}
+		targets = new int[offsets[offsets.length - 1]];
+		fill = new int[offsets.length - 1];
+	}
+
+	public void add(long row, long object) {
+		int r = (int) row;
+		// both passes read the same statements, the objects that weren't counted are dropped if they don't
+		if (fill[r] < offsets[r + 1] - offsets[r]) {
+			targets[offsets[r] + fill[r]++] = (int) object;
+		}
+	}
+
+	/**
+	 * Packs the rows after all objects have been added, sorting them and dropping duplicate objects, e.g.
+	 * from statements with different predicates, as well as the space of objects that were counted but not
+	 * added.
+	 */
+	public void complete() {
+		int rows = offsets.length - 1;
+		int write = 0;
+		for (int row = 0; row < rows; row++) {
+			int start = offsets[row];
+			int end = start + fill[row];
+			Arrays.sort(targets, start, end);
+			offsets[row] = write;
+			for (int i = start; i < end; i++) {
+				if (i == start || targets[i] != targets[i - 1]) {
+					targets[write++] = targets[i];
+				}
+			}
+		}
+		offsets[rows] = write;
+		fill = null;
+		if (write < targets.length - targets.length / 4) {
+			targets = Arrays.copyOf(targets, write);
+		}
+	}
+
+	/**
+	 * Cursor reading the objects of a row straight from the shared array.
+	 */
+	private class ArrayCursor extends Cursor {
+		private int from, curr, to;
+
+		@Override
+		public void seek(long row) {
+			from = curr = offsets[(int) row];
+			to = offsets[(int) row + 1];
+		}
+
+		@Override
+		public boolean hasNext() {
+			return curr < to;
+		}
+
+		@Override
+		public long next() {
+			return targets[curr++];
+		}
+
+		@Override
+		public long size() {
+			return to - from;
+		}
+	}
+
+	@Override
+	public Cursor newCursor() {
+		return new ArrayCursor();
+	}
+
+	@Override
+	public TableStorage.Iterator rowIterator(long row) {
+		Cursor cursor = newCursor();
+		cursor.seek(row);
+		return cursor;
+	}
+
+	@Override
+	public void shutDown() {
+		targets = null;
+	}
+}
@@ -0,0 +1,72 @@
+package com.ontotext.trree.plugin.lucene;
+
+import java.util.BitSet;
+
+/**
+ * Flags of all entities computed in a single pass before an index is built, so that the build doesn't ask
+ * the entity pool for the type, the class and the language of an entity each time it meets it. The ids of
+ * the entities that get documents are kept in a bit set that is scanned a word at a time, which lets the
+ * build skip whole ranges of entities that are not indexed.
+ */
+public class EntityBits {
+	// entities that get a document: of an indexed type and the base of their equivalence class
+	private final BitSet indexable;
+	// entities whose values are included in the molecules of other entities, null if the molecules consist
+	// of their centres only
+	private final BitSet included;
+	private final int size;
+
+	EntityBits(int size, boolean withIncluded) {
+		this.size = size;
+		indexable = new BitSet(size);
+		included = withIncluded ? new BitSet(size) : null;
+	}
+
+	void setIndexable(int id) {
+		indexable.set(id);
+	}
+
+	void setIncluded(int id) {
+		included.set(id);
+	}
+
+	/**
+	 * @return the first entity that gets a document with an id at least <code>from</code> or -1 if there
+	 *         isn't one
+	 */
+	public long nextIndexable(long from) {
+		if (from > Integer.MAX_VALUE) {
+			return -1;
+		}
+		return indexable.nextSetBit((int) from);
+	}
+
+	/**
+	 * @return false for the entities that were added to the pool after the flags were computed
+	 */
+	public boolean covers(long id) {
+		return id < size;
+	}
+
+	/**
+	 * @return the number of entity ids covered by the flags, the ids from this one on are not covered
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * @return true if it is known whether the entity is included in the molecules of other entities
+	 */
+	public boolean coversIncluded(long id) {
+		return included != null && id < size;
+	}
+
+	public boolean isIncluded(long id) {
+		return included.get((int) id);
+	}
+
+	public int getIndexableCount() {
+		return indexable.cardinality();
+	}
+}
@@ -0,0 +1,65 @@
+package com.ontotext.trree.plugin.lucene;
+
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.Field.Index;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.Fieldable;
+import org.apache.lucene.document.NumericField;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.util.NumericUtils;
+
+/**
+ * The entity id field of the documents of an index, reused for the documents of consecutive entities. The id
+ * is indexed as a single full precision numeric term, or as a decimal string in indices created with an older
+ * format, so that the documents of all entities in an index are written the same way.
+ */
+public class EntityIdField {
+	// only the full precision term is indexed as the ids are never searched by range
+	static final int PRECISION_STEP = Integer.MAX_VALUE;
+
+	private final NumericField numeric;
+	private final Field decimal;
+
+	EntityIdField(boolean isNumeric) {
+		if (isNumeric) {
+			numeric = new NumericField(LucenePlugin.FIELD_ID, PRECISION_STEP, Store.YES, true);
+			decimal = null;
+		} else {
+			numeric = null;
+			decimal = new Field(LucenePlugin.FIELD_ID, "", Store.YES, Index.NOT_ANALYZED_NO_NORMS);
+		}
+	}
+
+	public Fieldable getField() {
+		return numeric != null ? numeric : decimal;
+	}
+
+	public void setValue(long id) {
+		if (numeric != null) {
+			numeric.setLongValue(id);
+		} else {
+			decimal.setValue(Long.toString(id));
+		}
+	}
+
+	/**
+	 * Returns the term by which the document of an entity is found.
+	 */
+	static Term toTerm(long id, boolean isNumeric) {
+		return new Term(LucenePlugin.FIELD_ID, isNumeric ? NumericUtils.longToPrefixCoded(id) : Long.toString(id));
+	}
+
+	/**
+	 * Parses the text of an id term, returns -1 for the lower precision terms of numeric ids.
+	 */
+	static long parseTerm(String text, boolean isNumeric) {
+		if (!isNumeric) {
+			return Long.parseLong(text);
+		}
+		// the first character encodes the number of low bits stripped from the value
+		if (text.charAt(0) != NumericUtils.SHIFT_START_LONG) {
+			return -1;
+		}
+		return NumericUtils.prefixCodedToLong(text);
+	}
+}
@@ -0,0 +1,243 @@
+package com.ontotext.trree.plugin.lucene;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.Fieldable;
+import org.apache.lucene.document.MapFieldSelector;
+import org.apache.lucene.document.NumericField;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Resolves Lucene document numbers to entity ids. Lucene segments never change once written so each segment
+ * gets its own column of entity ids, one int per document, persisted next to the segment files in a
+ * <code>.eids</code> file and memory-mapped when the index is opened. Lucene 3 has no hook for the writing of
+ * a segment, so the column of a new segment is written when the first reader that sees it is opened, right
+ * after the commit that added it and before queries see it. Segments without a column (e.g. in indices whose
+ * ids are not indexed or whose column couldn't be written) fall back to loading the stored id lazily into an
+ * on-heap array.
+ */
+public class EntityIds {
+	static final String COLUMN_EXTENSION = ".eids";
+
+	private static final FieldSelector select = new MapFieldSelector(LucenePlugin.FIELD_ID);
+
+	// keyed by the segment core so that the columns follow the segment readers
+	private final Map<Object, Segment> segments = new IdentityHashMap<Object, Segment>();
+	// the segments whose ids are loaded from the stored fields, because they have no column
+	private int lazySegments;
+
+	/**
+	 * Entity ids of the documents in a single segment.
+	 */
+	public abstract static class Segment {
+		public abstract int get(IndexReader reader, int doc) throws IOException;
+	}
+
+	private static class MappedSegment extends Segment {
+		private final IntBuffer ids;
+
+		MappedSegment(IntBuffer ids) {
+			this.ids = ids;
+		}
+
+		@Override
+		public int get(IndexReader reader, int doc) {
+			return ids.get(doc);
+		}
+	}
+
+	private static class LazySegment extends Segment {
+		private final int[] ids;
+
+		LazySegment(int maxDoc) {
+			ids = new int[maxDoc];
+		}
+
+		@Override
+		public int get(IndexReader reader, int doc) throws IOException {
+			if (ids[doc] == 0) {
+				Document document = reader.document(doc, select);
+				if (document != null) {
+					Fieldable field = document.getFieldable(LucenePlugin.FIELD_ID);
+					if (field instanceof NumericField) {
+						ids[doc] = ((NumericField) field).getNumericValue().intValue();
+					} else if (field != null) {
+						ids[doc] = Integer.parseInt(field.stringValue());
+					}
+				}
+			}
+			return ids[doc];
+		}
+	}
+
+	/**
+	 * Prepares the columns for all segments of a reader.
+	 *
+	 * @param dataDir  the directory of the index
+	 * @param format   the document format of the index, the missing columns are written only if the entity
+	 *                 ids are indexed
+	 */
+	public EntityIds(IndexReader reader, File dataDir, int format) {
+		this(reader, dataDir, format, null);
+	}
+
+	/**
+	 * Prepares the columns for all segments of a reader reopened from another one. The columns of the
+	 * segments shared with the previous reader are reused as they are.
+	 *
+	 * @param previous the entity ids of the previous reader or null
+	 */
+	public EntityIds(IndexReader reader, File dataDir, int format, EntityIds previous) {
+		boolean build = format >= LuceneIndex.FORMAT_ID_INDEXED;
+		boolean numeric = format >= LuceneIndex.FORMAT_NUMERIC_ID;
+		Set<String> names = new HashSet<String>();
+		for (IndexReader segment : subReaders(reader)) {
+			Segment ids = previous != null ? previous.segments.get(segment.getCoreCacheKey()) : null;
+			if (ids instanceof LazySegment && build) {
+				// the column couldn't be prepared before, try again
+				ids = null;
+			}
+			if (segment instanceof SegmentReader) {
+				names.add(((SegmentReader) segment).getSegmentName() + COLUMN_EXTENSION);
+			}
+			if (ids == null && segment instanceof SegmentReader) {
+				String name = ((SegmentReader) segment).getSegmentName();
+				File column = new File(dataDir, name + COLUMN_EXTENSION);
+				try {
+					if (!column.exists() && build) {
+						writeColumn(segment, column, numeric);
+					}
+					if (column.exists()) {
+						ids = mapColumn(column, segment.maxDoc());
+					}
+				} catch (IOException iox) {
+					LoggerFactory.getLogger(getClass()).error("Failed preparing entity ids column " + column
+							+ ", the ids of its documents are loaded from the stored fields instead", iox);
+				}
+			}
+			if (ids == null) {
+				ids = new LazySegment(segment.maxDoc());
+			}
+			if (ids instanceof LazySegment) {
+				lazySegments++;
+			}
+			segments.put(segment.getCoreCacheKey(), ids);
+		}
+		if (build) {
+			deleteStaleColumns(dataDir, names);
+		}
+	}
+
+	/**
+	 * Returns the entity ids of a segment of the reader these ids were created for. Segments of other readers
+	 * get their ids resolved from the stored fields.
+	 */
+	public Segment forSegment(IndexReader segment) {
+		Segment ids = segments.get(segment.getCoreCacheKey());
+		return ids != null ? ids : new LazySegment(segment.maxDoc());
+	}
+
+	/**
+	 * Returns the number of segments without a column, whose ids are loaded from the stored fields. These
+	 * are the segments of indices whose ids are not indexed and the ones whose column couldn't be prepared.
+	 */
+	public int getLazySegmentCount() {
+		return lazySegments;
+	}
+
+	private static IndexReader[] subReaders(IndexReader reader) {
+		IndexReader[] subReaders = reader.getSequentialSubReaders();
+		return subReaders != null ? subReaders : new IndexReader[] { reader };
+	}
+
+	/**
+	 * Collects the entity ids of a segment from the postings of the indexed id field, which is much cheaper
+	 * than loading the stored field of each document.
+	 */
+	private static void writeColumn(IndexReader segment, File column, boolean numeric) throws IOException {
+		int[] ids = new int[segment.maxDoc()];
+		TermEnum terms = segment.terms(new Term(LucenePlugin.FIELD_ID, ""));
+		TermDocs docs = segment.termDocs();
+		try {
+			do {
+				Term term = terms.term();
+				if (term == null || !LucenePlugin.FIELD_ID.equals(term.field())) {
+					break;
+				}
+				int id = (int) EntityIdField.parseTerm(term.text(), numeric);
+				if (id < 0) {
+					continue;
+				}
+				docs.seek(terms);
+				while (docs.next()) {
+					ids[docs.doc()] = id;
+				}
+			} while (terms.next());
+		} finally {
+			docs.close();
+			terms.close();
+		}
+
+		// write to a temporary file first so that a column is either complete or missing
+		File temp = new File(column.getPath() + LucenePlugin.TEMP_SUFFIX);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			for (int id : ids) {
+				out.writeInt(id);
+			}
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(column)) {
+			temp.delete();
+			throw new IOException("Failed renaming " + temp + " to " + column);
+		}
+	}
+
+	private static Segment mapColumn(File column, int maxDoc) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(column, "r");
+		try {
+			if (file.length() != maxDoc * 4L) {
+				throw new IOException("Entity ids column " + column + " does not match its segment");
+			}
+			IntBuffer ids = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length()).asIntBuffer();
+			return new MappedSegment(ids);
+		} finally {
+			// the mapping remains valid after the file is closed
+			file.close();
+		}
+	}
+
+	private static void deleteStaleColumns(File dataDir, final Set<String> current) {
+		File[] stale = dataDir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(COLUMN_EXTENSION) && !current.contains(name);
+			}
+		});
+		if (stale != null) {
+			for (File file : stale) {
+				file.delete();
+			}
+		}
+	}
+}
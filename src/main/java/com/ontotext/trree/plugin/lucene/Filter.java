@@ -31,6 +31,13 @@ public class Filter implements JSONizer.JSONizableAsSimpleMap {
 		}
 	}
 
+	/**
+	 * Copies the values of a filter of the same kind.
+	 */
+	public void  copyFrom(Filter other) {
+		System.arraycopy(other.values, 0, values, 0, values.length);
+	}
+
 	public int  getFlagNumber() {
 		return flags.length;
 	}
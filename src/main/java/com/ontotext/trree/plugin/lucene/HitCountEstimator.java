@@ -0,0 +1,128 @@
+package com.ontotext.trree.plugin.lucene;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.FilteredTermEnum;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.PrefixTermEnum;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.search.WildcardQuery;
+import org.apache.lucene.search.WildcardTermEnum;
+
+import java.io.IOException;
+
+/**
+ * Estimates the number of hits of a query. Term queries are answered exactly from the document frequency of
+ * the term and prefix and wildcard queries from the sum of the frequencies of the terms they match, without
+ * rewriting them. Other queries are executed over a sample of the documents, windows evenly spaced in each
+ * segment, and the number of hits found there is extrapolated to the whole index. The documents follow the
+ * order of the entity ids, so a sample taken from the beginning of the index only would be biased.
+ */
+public class HitCountEstimator {
+	// number of documents to examine
+	static final int SAMPLE_SIZE = 100000;
+	// number of windows the sample of a segment is split into
+	static final int SAMPLE_WINDOWS = 64;
+	// number of terms of a prefix or wildcard query whose frequencies are summed
+	static final int MAX_TERMS = 1000;
+
+	private final int sampleSize;
+
+	public HitCountEstimator() {
+		this(SAMPLE_SIZE);
+	}
+
+	public HitCountEstimator(int sampleSize) {
+		this.sampleSize = sampleSize;
+	}
+
+	public long estimate(IndexSearcher searcher, Query query) throws IOException {
+		IndexReader reader = searcher.getIndexReader();
+		if (query instanceof TermQuery) {
+			return reader.docFreq(((TermQuery) query).getTerm());
+		}
+		if (query instanceof PrefixQuery) {
+			return sumDocFreqs(reader, new PrefixTermEnum(reader, ((PrefixQuery) query).getPrefix()));
+		}
+		if (query instanceof WildcardQuery) {
+			return sumDocFreqs(reader, new WildcardTermEnum(reader, ((WildcardQuery) query).getTerm()));
+		}
+		return sample(searcher, query);
+	}
+
+	/**
+	 * Sums the frequencies of at most {@link #MAX_TERMS} terms, so the estimate of a query matching more
+	 * terms is a lower bound. A document with several of the terms is counted once for each of them.
+	 */
+	private static long sumDocFreqs(IndexReader reader, FilteredTermEnum terms) throws IOException {
+		long sum = 0;
+		try {
+			int count = 0;
+			if (terms.term() != null) {
+				do {
+					sum += terms.docFreq();
+				} while (++count < MAX_TERMS && terms.next());
+			}
+		} finally {
+			terms.close();
+		}
+		return Math.min(sum, reader.maxDoc());
+	}
+
+	private long sample(IndexSearcher searcher, Query query) throws IOException {
+		int maxDoc = searcher.getIndexReader().maxDoc();
+		if (maxDoc == 0) {
+			return 0;
+		}
+		Weight weight = searcher.createNormalizedWeight(query);
+		long hits = 0;
+		long sampled = 0;
+		for (IndexReader segment : searcher.getSubReaders()) {
+			int size = segment.maxDoc();
+			if (size == 0) {
+				continue;
+			}
+			// each segment gets a share of the sample proportional to its size
+			int share = (int) Math.min(size, Math.max(1, (long) sampleSize * size / maxDoc));
+			sampled += share;
+			Scorer scorer = weight.scorer(segment, true, false);
+			if (scorer != null) {
+				hits += countSample(scorer, size, share);
+			}
+		}
+		if (sampled >= maxDoc) {
+			// the whole index has been examined
+			return hits;
+		}
+		return (long) ((double) hits * maxDoc / sampled);
+	}
+
+	/**
+	 * Counts the hits in windows evenly spaced over a segment, which together hold the given number of
+	 * documents and cover the segment when it is that large.
+	 */
+	private static long countSample(Scorer scorer, int size, int share) throws IOException {
+		int windows = Math.min(SAMPLE_WINDOWS, share);
+		long hits = 0;
+		int doc = scorer.docID();
+		for (int window = 0; window < windows; window++) {
+			int start = (int) ((long) window * size / windows);
+			int end = start + (int) ((long) share * (window + 1) / windows - (long) share * window / windows);
+			if (doc < start) {
+				doc = scorer.advance(start);
+			}
+			while (doc < end) {
+				hits++;
+				doc = scorer.nextDoc();
+			}
+			if (doc == DocIdSetIterator.NO_MORE_DOCS) {
+				break;
+			}
+		}
+		return hits;
+	}
+}
@@ -0,0 +1,48 @@
+package com.ontotext.trree.plugin.lucene;
+
+/**
+ * Immutable, score-ordered list of hits kept in two parallel primitive arrays: the entity ids and their
+ * scores. Hits are ranked by score, descending, and then by entity id, ascending.
+ */
+public final class HitList {
+	public static final HitList EMPTY = new HitList(new int[0], new float[0]);
+
+	private final int[] ids;
+	private final float[] scores;
+
+	HitList(int[] ids, float[] scores) {
+		this.ids = ids;
+		this.scores = scores;
+	}
+
+	public int size() {
+		return ids.length;
+	}
+
+	public int id(int idx) {
+		return ids[idx];
+	}
+
+	public float score(int idx) {
+		return scores[idx];
+	}
+
+	/**
+	 * Returns the position of an entity in the list or -1 if it is missing.
+	 */
+	public int indexOf(long id) {
+		for (int idx = 0; idx < ids.length; idx++) {
+			if ((ids[idx] & 0xFFFFFFFFL) == id) {
+				return idx;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Checks if hit (score1, id1) ranks before hit (score2, id2).
+	 */
+	static boolean isBetter(float score1, int id1, float score2, int id2) {
+		return score1 > score2 || (score1 == score2 && id1 < id2);
+	}
+}
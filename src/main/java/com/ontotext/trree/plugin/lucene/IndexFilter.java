@@ -1,5 +1,7 @@
 package com.ontotext.trree.plugin.lucene;
 
+import com.ontotext.trree.sdk.Entities;
+
 public class IndexFilter extends Filter {
 	public IndexFilter() {
 		super("uri", "bnode", "literal");
@@ -16,4 +18,17 @@ public class IndexFilter extends Filter {
 	public boolean indexLiteral() {
 		return getFlagValue(2);
 	}
+
+	public boolean index(Entities.Type type) {
+		switch (type) {
+		case URI:
+			return indexURI();
+		case BNODE:
+			return indexBNode();
+		case LITERAL:
+			return indexLiteral();
+		default:
+			return true;
+		}
+	}
 }
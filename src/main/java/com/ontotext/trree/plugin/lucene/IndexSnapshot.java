@@ -0,0 +1,38 @@
+package com.ontotext.trree.plugin.lucene;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+
+/**
+ * A consistent view of a Lucene index: a searcher, the entity ids of its segments and the generation it was
+ * opened at. Snapshots are obtained with {@link LuceneIndex#acquire()} and must be given back with
+ * {@link LuceneIndex#release(IndexSnapshot)}; the reader is closed only when the index has moved on to a newer
+ * snapshot and the last query using this one has released it.
+ */
+public final class IndexSnapshot {
+	private final IndexSearcher searcher;
+	private final EntityIds entityIds;
+	private final long generation;
+
+	IndexSnapshot(IndexSearcher searcher, EntityIds entityIds, long generation) {
+		this.searcher = searcher;
+		this.entityIds = entityIds;
+		this.generation = generation;
+	}
+
+	public IndexSearcher getSearcher() {
+		return searcher;
+	}
+
+	public IndexReader getReader() {
+		return searcher.getIndexReader();
+	}
+
+	public EntityIds getEntityIds() {
+		return entityIds;
+	}
+
+	public long getGeneration() {
+		return generation;
+	}
+}
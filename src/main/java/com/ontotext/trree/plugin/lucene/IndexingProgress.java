@@ -0,0 +1,54 @@
+package com.ontotext.trree.plugin.lucene;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress of building or updating an index: the entities processed so far and the documents written,
+ * updated by the indexing threads and read by status queries. Cancelling it makes the indexing threads stop
+ * at the next chunk of entities and the preparation of the molecule graph within the next 65536 statements or
+ * entities.
+ */
+public class IndexingProgress {
+	private final AtomicLong processed = new AtomicLong();
+	private final AtomicLong documents = new AtomicLong();
+	private volatile long total;
+	private volatile boolean cancelled;
+
+	public long getProcessed() {
+		return processed.get();
+	}
+
+	/**
+	 * @return the number of entities processed so far
+	 */
+	public long addProcessed(long count) {
+		return processed.addAndGet(count);
+	}
+
+	public long getDocuments() {
+		return documents.get();
+	}
+
+	public void addDocuments(long count) {
+		documents.addAndGet(count);
+	}
+
+	/**
+	 * @return the number of entities to be processed, 0 if not known yet
+	 */
+	public long getTotal() {
+		return total;
+	}
+
+	public void setTotal(long total) {
+		this.total = total;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	public void cancel() {
+		cancelled = true;
+	}
+}
@@ -0,0 +1,47 @@
+package com.ontotext.trree.plugin.lucene;
+
+import com.ontotext.trree.sdk.Entities;
+import com.ontotext.trree.sdk.Entities.Scope;
+import com.ontotext.trree.sdk.StatementIterator;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Returns a statement per build job with the index as the subject and the status of its last build as a
+ * request-scoped JSON literal.
+ */
+public class JobsIterator extends StatementIterator {
+	private final Entities entities;
+	private final long boundObject;
+	private final Iterator<BuildJob> jobs;
+	private static final ValueFactory F = SimpleValueFactory.getInstance();
+
+	public JobsIterator(long predicate, long object, List<BuildJob> jobs, Entities entities) {
+		super(0, predicate, object);
+		this.entities = entities;
+		this.boundObject = object;
+		this.jobs = jobs.iterator();
+	}
+
+	@Override
+	public boolean next() {
+		while (jobs.hasNext()) {
+			BuildJob job = jobs.next();
+			String status = new JSONizer().add(job.getStatus()).toString();
+			object = entities.put(F.createLiteral(status), Scope.REQUEST);
+			if (boundObject == 0 || boundObject == object) {
+				subject = entities.put(F.createIRI(Lucene.NAMESPACE + job.getIndexName()), Scope.REQUEST);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public void close() {
+
+	}
+}
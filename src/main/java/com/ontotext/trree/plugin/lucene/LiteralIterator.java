@@ -0,0 +1,39 @@
+package com.ontotext.trree.plugin.lucene;
+
+import com.ontotext.trree.sdk.Entities;
+import com.ontotext.trree.sdk.Entities.Scope;
+import com.ontotext.trree.sdk.StatementIterator;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+
+/**
+ * Returns a single statement whose object is a request-scoped literal, e.g. the statistics of an index.
+ */
+public class LiteralIterator extends StatementIterator {
+	private final Entities entities;
+	private final long boundObject;
+	private String value;
+	private static final ValueFactory F = SimpleValueFactory.getInstance();
+
+	public LiteralIterator(long subject, long predicate, long object, String value, Entities entities) {
+		super(subject, predicate, object);
+		this.entities = entities;
+		this.boundObject = object;
+		this.value = value;
+	}
+
+	@Override
+	public boolean next() {
+		if (value == null) {
+			return false;
+		}
+		object = entities.put(F.createLiteral(value), Scope.REQUEST);
+		value = null; // so further calls are responded to negatively
+		return boundObject == 0 || boundObject == object;
+	}
+
+	@Override
+	public void close() {
+
+	}
+}
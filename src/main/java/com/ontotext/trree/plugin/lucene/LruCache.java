@@ -0,0 +1,85 @@
+package com.ontotext.trree.plugin.lucene;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Thread-safe LRU cache bounded by the total weight of its values. Keeps hit, miss and eviction counters.
+ * By default each value weighs 1 so the cache is bounded by number of entries.
+ */
+public class LruCache<K, V> {
+	private final LinkedHashMap<K, V> map = new LinkedHashMap<K, V>(16, 0.75f, true);
+	private final long maxWeight;
+	private long weight;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	public LruCache(long maxWeight) {
+		this.maxWeight = maxWeight;
+	}
+
+	protected long weigh(V value) {
+		return 1;
+	}
+
+	public synchronized V get(K key) {
+		V value = map.get(key);
+		if (value != null) {
+			hits++;
+		} else {
+			misses++;
+		}
+		return value;
+	}
+
+	/**
+	 * Adds a value evicting the least recently used ones if needed. Values heavier than the whole cache are
+	 * not cached at all.
+	 */
+	public synchronized void put(K key, V value) {
+		long valueWeight = weigh(value);
+		if (valueWeight > maxWeight) {
+			return;
+		}
+		V old = map.put(key, value);
+		if (old != null) {
+			weight -= weigh(old);
+		}
+		weight += valueWeight;
+		Iterator<Map.Entry<K, V>> iter = map.entrySet().iterator();
+		while (weight > maxWeight && iter.hasNext()) {
+			Map.Entry<K, V> eldest = iter.next();
+			weight -= weigh(eldest.getValue());
+			iter.remove();
+			evictions++;
+		}
+	}
+
+	public synchronized void clear() {
+		map.clear();
+		weight = 0;
+	}
+
+	public synchronized int size() {
+		return map.size();
+	}
+
+	public synchronized long getWeight() {
+		return weight;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+}
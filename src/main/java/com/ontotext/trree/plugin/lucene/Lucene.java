@@ -23,11 +23,21 @@ public class Lucene {
 	public static final IRI INCLUDE_ENTITIES = F.createIRI(NAMESPACE + "includeEntities");
 	public static final IRI EXCLUDE_ENTITIES = F.createIRI(NAMESPACE + "excludeEntities");
 	public static final IRI MOLECULE_SIZE = F.createIRI(NAMESPACE + "moleculeSize");
+	public static final IRI MOLECULE_FAN_OUT = F.createIRI(NAMESPACE + "moleculeFanOut");
+	public static final IRI MOLECULE_MAX_ENTITIES = F.createIRI(NAMESPACE + "moleculeMaxEntities");
 	public static final IRI USE_RDF_RANK = F.createIRI(NAMESPACE + "useRDFRank");
 	public static final IRI CREATE_INDEX = F.createIRI(NAMESPACE + "createIndex");
 	public static final IRI UPDATE_INDEX = F.createIRI(NAMESPACE + "updateIndex");
 	public static final IRI ADD_TO_INDEX = F.createIRI(NAMESPACE + "addToIndex");
 	public static final IRI SCORE = F.createIRI(NAMESPACE + "score");
+	public static final IRI LIMIT = F.createIRI(NAMESPACE + "limit");
+	public static final IRI STATS = F.createIRI(NAMESPACE + "stats");
+	public static final IRI PARALLEL_SEARCH = F.createIRI(NAMESPACE + "parallelSearch");
+	public static final IRI DIRECTORY = F.createIRI(NAMESPACE + "directory");
+	public static final IRI TRACK_CHANGES = F.createIRI(NAMESPACE + "trackChanges");
+	public static final IRI JOB_STATUS = F.createIRI(NAMESPACE + "jobStatus");
+	public static final IRI JOBS = F.createIRI(NAMESPACE + "jobs");
+	public static final IRI CANCEL_JOB = F.createIRI(NAMESPACE + "cancelJob");
 
 	public static final IRI OLD_QUERY = F.createIRI(OLD_NAMESPACE + "luceneQuery");
 
@@ -6,46 +6,135 @@ import org.apache.lucene.index.IndexNotFoundException;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
 import org.apache.lucene.queryParser.ParseException;
 import org.apache.lucene.queryParser.QueryParser;
+import org.apache.lucene.search.Filter;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.store.RAMDirectory;
 import org.apache.lucene.store.SimpleFSDirectory;
 import org.apache.lucene.util.Version;
+import org.slf4j.LoggerFactory;
+
+import com.ontotext.trree.util.FileUtils;
 
 import java.io.File;
+import java.io.FileFilter;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 public class LuceneIndex {
 	private static final String DEFAULT_MISSING_VERSION = "30";
 	private static final String DEFAULT_VERSION = "35";
 	private static final String CONFIG_FILE = "index.properties";
+	// prefix of the directories with the files of the successive builds of an index
+	static final String GENERATION_PREFIX = "generation.";
 	private static final String PARAM_ANALYZER = "analyzer";
 	private static final String PARAM_VERSION = "version";
 	private static final String PARAM_FINGERPRINT = "fingerprint";
+	private static final String PARAM_FORMAT = "format";
+	private static final String PARAM_PARALLEL_SEARCH = "parallelsearch";
+	private static final String PARAM_DIRECTORY = "directory";
+	private static final String PARAM_TRACK_CHANGES = "trackchanges";
+
+	// how the index files are read: synchronized seek and read, positional reads, memory-mapped or loaded in RAM
+	static final String DIRECTORY_SIMPLE = "simple";
+	static final String DIRECTORY_NIO = "nio";
+	static final String DIRECTORY_MMAP = "mmap";
+	static final String DIRECTORY_RAM = "ram";
+
+	// the entity id is stored only
+	static final int FORMAT_LEGACY = 0;
+	// the entity id is also indexed as a single term, allowing lookups by id
+	static final int FORMAT_ID_INDEXED = 1;
+	// the entity id is indexed as a number, see EntityIdField
+	static final int FORMAT_NUMERIC_ID = 2;
+	// the values of a molecule are in the order of the walk, see MoleculeText; the texts and therefore the
+	// fingerprints of the documents differ from those of the older formats
+	static final int FORMAT_MOLECULE_ORDER = 3;
+	static final int FORMAT_CURRENT = FORMAT_MOLECULE_ORDER;
+
+	// maximum number of hits kept in the results cache of an index, a single query may take up to a tenth
+	private static final int RESULTS_CACHE_SIZE = 100000;
+	private static final int QUERY_CACHE_SIZE = 1000;
+	private static final int ESTIMATES_CACHE_SIZE = 1000;
 
 	private String version;
-	private IndexSearcher searcher;
+	// the snapshot new queries get, null until the index is opened
+	private volatile IndexSnapshot current;
 	private Analyzer analyzer;
-	private QueryParser parser;
+	// query parsers aren't thread-safe so each thread gets its own
+	private volatile ThreadLocal<QueryParser> parsers;
+	private final ConcurrentCache<String, Query> queryCache = new ConcurrentCache<String, Query>(QUERY_CACHE_SIZE);
+	private final ConcurrentCache<QueryKey, Long> estimatesCache = new ConcurrentCache<QueryKey, Long>(
+			ESTIMATES_CACHE_SIZE);
+	private final HitCountEstimator estimator = new HitCountEstimator();
 	private File dataDir;
 	private String name;
 	private String analyzerFactory;
 	private long fingerprint;
-	private int[] docToURIMapping = null;
+	private int format;
+	private boolean parallelSearch;
+	private boolean trackChanges;
+	private String directory = DIRECTORY_SIMPLE;
+	// shared by all indices, owned by the plugin
+	private ExecutorService searchExecutor;
+	// the directory the current searcher was opened on
+	private File readerDir;
+	// incremented each time a new searcher is opened
+	private volatile long generation;
+	private final LruCache<QueryKey, HitList> resultsCache = new LruCache<QueryKey, HitList>(
+			RESULTS_CACHE_SIZE) {
+		@Override
+		protected long weigh(HitList value) {
+			return Math.max(value.size(), 1);
+		}
+	};
 
-	static class SynchQueryParser extends QueryParser {
+	/**
+	 * Key of the per-query caches. The generation makes sure values computed against an older searcher are
+	 * never served once the index has been refreshed.
+	 */
+	private static class QueryKey {
+		private final String query;
+		private final long generation;
 
-		public SynchQueryParser(Version resolveVersion, String fieldText, Analyzer analyzer) {
-			super(resolveVersion, fieldText, analyzer);
+		QueryKey(String query, long generation) {
+			this.query = query;
+			this.generation = generation;
 		}
-		public synchronized Query parse(String query) throws ParseException {
-			return super.parse(query);
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof QueryKey)) {
+				return false;
+			}
+			QueryKey other = (QueryKey) o;
+			return generation == other.generation && query.equals(other.query);
+		}
+
+		@Override
+		public int hashCode() {
+			return query.hashCode() * 31 + (int) (generation ^ (generation >>> 32));
 		}
-		
 	}
 
 	public LuceneIndex(String name, File dataDir) throws IOException {
@@ -74,6 +163,24 @@ public class LuceneIndex {
 		// read the version
 		version = props.getProperty(PARAM_VERSION, propertiesLoaded ? DEFAULT_MISSING_VERSION
 				: DEFAULT_VERSION);
+		// read the document format, indices created by older versions have no format
+		try {
+			format = Integer.parseInt(props.getProperty(PARAM_FORMAT, "" + (propertiesLoaded ? FORMAT_LEGACY
+					: FORMAT_CURRENT)));
+		} catch (NumberFormatException nfx) {
+			format = FORMAT_LEGACY;
+		}
+		if (format < FORMAT_CURRENT) {
+			// documents added later must be written the same way, only recreating the index upgrades it
+			LoggerFactory.getLogger(getClass()).info("Lucene index '" + name + "' uses the older document format "
+					+ format + ", recreate it to upgrade it to format " + FORMAT_CURRENT);
+		}
+		parallelSearch = Boolean.parseBoolean(props.getProperty(PARAM_PARALLEL_SEARCH, "false"));
+		trackChanges = Boolean.parseBoolean(props.getProperty(PARAM_TRACK_CHANGES, "false"));
+		directory = props.getProperty(PARAM_DIRECTORY, DIRECTORY_SIMPLE);
+		if (!isValidDirectory(directory)) {
+			directory = DIRECTORY_SIMPLE;
+		}
 		// configure analyzer
 		configureAnalyzerFactory(props.getProperty(PARAM_ANALYZER));
 		// read fingerprint
@@ -96,14 +203,170 @@ public class LuceneIndex {
 
 	}
 
-	public void refresh() throws IndexNotFoundException, IOException  {
-		// attempt to initialize the index found in this directory
-		if (searcher != null) {
-			searcher.getIndexReader().close();
-			searcher.close();
+	/**
+	 * Opens a searcher on the latest commit of the index. If the index in the same directory is already open,
+	 * the current reader is reopened instead, which shares the unchanged segments, together with their term
+	 * indices, norms and entity ids, with the current reader and loads only the new ones.
+	 */
+	public synchronized void refresh() throws IndexNotFoundException, IOException  {
+		IndexSnapshot snapshot = current;
+		IndexReader old = snapshot != null ? snapshot.getReader() : null;
+		IndexReader reader;
+		// a RAM copy doesn't see the changes on disk so it is always loaded anew
+		if (old != null && dataDir.equals(readerDir) && !DIRECTORY_RAM.equals(directory)) {
+			reader = IndexReader.openIfChanged(old, true);
+			if (reader == null) {
+				// nothing has changed, the caches remain valid
+				return;
+			}
+		} else {
+			// attempt to initialize the index found in this directory
+			reader = IndexReader.open(openDirectory(), true);
+		}
+		EntityIds ids = null;
+		try {
+			ids = new EntityIds(reader, dataDir, format, old != null ? snapshot.getEntityIds() : null);
+		} finally {
+			if (ids == null) {
+				// the previous snapshot keeps serving queries
+				reader.decRef();
+			}
+		}
+
+		// results computed on the old snapshot are refused from now on, see cacheResults()
+		generation++;
+		current = new IndexSnapshot(new IndexSearcher(reader), ids, generation);
+		readerDir = dataDir;
+		resultsCache.clear();
+		estimatesCache.clear();
+		if (old != null) {
+			// closes the old reader unless queries still use it
+			old.decRef();
+		}
+	}
+
+	/**
+	 * Shuts the index down and deletes its files once the queries that still use it have released it, e.g.
+	 * after the index has been replaced by a new build.
+	 */
+	public synchronized void retire() throws IOException {
+		final File retiredDir = dataDir;
+		IndexSnapshot snapshot = current;
+		if (snapshot != null) {
+			snapshot.getReader().addReaderClosedListener(new IndexReader.ReaderClosedListener() {
+				@Override
+				public void onClose(IndexReader reader) {
+					deleteDataDir(retiredDir);
+				}
+			});
+			shutDown();
+		} else {
+			deleteDataDir(retiredDir);
+		}
+	}
+
+	/**
+	 * Returns the directory of the latest build of an index. Indices created before the builds got their own
+	 * directories have their files directly in the index directory.
+	 */
+	static File findDataDir(File indexDir) {
+		File[] generations = listGenerations(indexDir);
+		return generations.length > 0 ? generations[generations.length - 1] : indexDir;
+	}
+
+	/**
+	 * Returns the directory for a new build of an index, which becomes the latest one once it exists.
+	 */
+	static File nextDataDir(File indexDir) {
+		File[] generations = listGenerations(indexDir);
+		long next = generations.length > 0 ? getGeneration(generations[generations.length - 1]) + 1 : 1;
+		return new File(indexDir, GENERATION_PREFIX + next);
+	}
+
+	/**
+	 * Deletes the builds of an index that are older than the latest one, left behind if the repository was
+	 * shut down before the queries that used them were done.
+	 */
+	static void deleteStaleDataDirs(File indexDir) {
+		File[] generations = listGenerations(indexDir);
+		if (generations.length > 0) {
+			deleteDataDir(indexDir);
+			for (int idx = 0; idx < generations.length - 1; idx++) {
+				deleteDataDir(generations[idx]);
+			}
 		}
-		docToURIMapping = null;
-		searcher = new IndexSearcher(IndexReader.open(new SimpleFSDirectory(dataDir), true));
+	}
+
+	private static void deleteDataDir(File dir) {
+		if (dir.getName().startsWith(GENERATION_PREFIX)) {
+			FileUtils.recursiveDelete(dir);
+		} else {
+			// the index directory also holds the directories of the builds, and of the other indices
+			File[] files = dir.listFiles();
+			if (files != null) {
+				for (File file : files) {
+					if (file.isFile()) {
+						file.delete();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Lists the directories of the builds of an index from the oldest to the latest.
+	 */
+	private static File[] listGenerations(File indexDir) {
+		File[] generations = indexDir.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.isDirectory() && getGeneration(file) > 0;
+			}
+		});
+		if (generations == null) {
+			return new File[0];
+		}
+		Arrays.sort(generations, new Comparator<File>() {
+			@Override
+			public int compare(File f1, File f2) {
+				return Long.compare(getGeneration(f1), getGeneration(f2));
+			}
+		});
+		return generations;
+	}
+
+	private static long getGeneration(File dir) {
+		String name = dir.getName();
+		if (!name.startsWith(GENERATION_PREFIX)) {
+			return 0;
+		}
+		try {
+			return Long.parseLong(name.substring(GENERATION_PREFIX.length()));
+		} catch (NumberFormatException nfx) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Pins the current snapshot of the index for a query, see {@link IndexSnapshot}.
+	 *
+	 * @return the snapshot or null if the index is not operational
+	 */
+	public IndexSnapshot acquire() {
+		while (true) {
+			IndexSnapshot snapshot = current;
+			if (snapshot == null || snapshot.getReader().tryIncRef()) {
+				return snapshot;
+			}
+			// the snapshot has just been replaced and closed, try again with the new one
+		}
+	}
+
+	/**
+	 * Releases a snapshot obtained by {@link #acquire()}.
+	 */
+	public void release(IndexSnapshot snapshot) throws IOException {
+		snapshot.getReader().decRef();
 	}
 
 	public void writeProperties() throws IOException {
@@ -114,22 +377,23 @@ public class LuceneIndex {
 		}
 		props.setProperty(PARAM_FINGERPRINT, "" + getFingerprint());
 		props.setProperty(PARAM_VERSION, version);
+		props.setProperty(PARAM_FORMAT, "" + format);
+		props.setProperty(PARAM_PARALLEL_SEARCH, "" + parallelSearch);
+		props.setProperty(PARAM_DIRECTORY, directory);
+		props.setProperty(PARAM_TRACK_CHANGES, "" + trackChanges);
 		FileOutputStream out = new FileOutputStream(getConfigFile());
 		props.store(out, "Lucene index: " + getName());
 		out.close();
 	}
 	
-	public void shutDown() throws IOException {
+	public synchronized void shutDown() throws IOException {
 		writeProperties();
-		if (searcher != null) {
-			searcher.getIndexReader().close();
-			searcher.close();
+		IndexSnapshot snapshot = current;
+		current = null;
+		if (snapshot != null) {
+			snapshot.getReader().decRef();
 		}
 	}
-	
-	public IndexSearcher getSearcher() {
-		return searcher;
-	}
 
 	public void configureAnalyzerFactory(String factoryClass) {
 		AnalyzerFactory factory = null;
@@ -143,15 +407,34 @@ public class LuceneIndex {
 			analyzer = new StandardAnalyzer(resolveVersion(version));
 		}
 
-		boolean lowerCaseExpandedTerms = !(factory != null && factory.isCaseSensitive());
-		// create a query parser
-		parser = new SynchQueryParser(resolveVersion(version), LucenePlugin.FIELD_TEXT, analyzer);
-		parser.setAllowLeadingWildcard(true);
-		parser.setLowercaseExpandedTerms(lowerCaseExpandedTerms);
+		final boolean lowerCaseExpandedTerms = !(factory != null && factory.isCaseSensitive());
+		final Version parserVersion = resolveVersion(version);
+		final Analyzer parserAnalyzer = analyzer;
+		// create the query parsers lazily, the analyzer itself is safe to share between threads
+		parsers = new ThreadLocal<QueryParser>() {
+			@Override
+			protected QueryParser initialValue() {
+				QueryParser parser = new QueryParser(parserVersion, LucenePlugin.FIELD_TEXT, parserAnalyzer);
+				parser.setAllowLeadingWildcard(true);
+				parser.setLowercaseExpandedTerms(lowerCaseExpandedTerms);
+				return parser;
+			}
+		};
+		queryCache.clear();
 	}
 
-	public QueryParser getParser() {
-		return parser;
+	/**
+	 * Parses a query using the analyzer of this index. Parsed queries are cached and shared between threads
+	 * as they aren't modified while searching.
+	 */
+	public Query parse(String query) throws ParseException {
+		String key = normalizeQuery(query);
+		Query parsed = queryCache.get(key);
+		if (parsed == null) {
+			parsed = parsers.get().parse(query);
+			queryCache.put(key, parsed);
+		}
+		return parsed;
 	}
 
 	private File getConfigFile() {
@@ -159,14 +442,24 @@ public class LuceneIndex {
 	}
 
 	public IndexWriter getWriter() throws IOException {
+		return getWriter(IndexWriterConfig.DEFAULT_MAX_THREAD_STATES);
+	}
+
+	/**
+	 * Opens a writer for adding documents from the given number of threads concurrently.
+	 */
+	public IndexWriter getWriter(int threads) throws IOException {
 		IndexWriterConfig config = new IndexWriterConfig(resolveVersion(version), analyzer);
+		config.setMaxThreadStates(Math.max(threads, IndexWriterConfig.DEFAULT_MAX_THREAD_STATES));
 
-		IndexWriter ret =  new IndexWriter(new SimpleFSDirectory(dataDir), config);
+		// the index is always written to disk, a RAM copy is loaded on refresh
+		Directory target = DIRECTORY_RAM.equals(directory) ? new SimpleFSDirectory(dataDir) : openDirectory();
+		IndexWriter ret =  new IndexWriter(target, config);
 		return ret;
 	}
 
 	public boolean isOperational() {
-		return searcher != null;
+		return current != null;
 	}
 
 	public String getName() {
@@ -181,13 +474,241 @@ public class LuceneIndex {
 		fingerprint = value;
 	}
 
-	public int[] getDocToURIMapping() {
-		if (docToURIMapping == null) {
-			if (searcher != null) {
-				docToURIMapping = new int[searcher.getIndexReader().maxDoc()];
+	/**
+	 * Tells if all documents in the index have their entity id indexed so that they can be looked up by id.
+	 * Documents added to an index with an older format are indexed by id too but the older ones are not.
+	 */
+	public boolean isIdIndexed() {
+		return format >= FORMAT_ID_INDEXED;
+	}
+
+	public boolean isIdNumeric() {
+		return format >= FORMAT_NUMERIC_ID;
+	}
+
+	public int getFormat() {
+		return format;
+	}
+
+	/**
+	 * Creates an id field for the documents added to this index, in the format of the existing ones.
+	 */
+	public EntityIdField newIdField() {
+		return new EntityIdField(isIdNumeric());
+	}
+
+	/**
+	 * Returns the term by which the document of an entity is found in this index.
+	 */
+	public Term idTerm(long id) {
+		return EntityIdField.toTerm(id, isIdNumeric());
+	}
+
+	/**
+	 * Opens the directory of the index files with the configured implementation.
+	 */
+	private Directory openDirectory() throws IOException {
+		if (DIRECTORY_NIO.equals(directory)) {
+			return new NIOFSDirectory(dataDir);
+		} else if (DIRECTORY_MMAP.equals(directory)) {
+			return new MMapDirectory(dataDir);
+		} else if (DIRECTORY_RAM.equals(directory)) {
+			Directory disk = new NIOFSDirectory(dataDir);
+			try {
+				return new RAMDirectory(disk);
+			} finally {
+				disk.close();
+			}
+		}
+		return new SimpleFSDirectory(dataDir);
+	}
+
+	public static boolean isValidDirectory(String directory) {
+		return DIRECTORY_SIMPLE.equals(directory) || DIRECTORY_NIO.equals(directory)
+				|| DIRECTORY_MMAP.equals(directory) || DIRECTORY_RAM.equals(directory);
+	}
+
+	public String getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Sets how the index files are read. Takes effect when the index is opened next.
+	 */
+	public void setDirectory(String directory) {
+		this.directory = directory;
+	}
+
+	public boolean isParallelSearch() {
+		return parallelSearch;
+	}
+
+	public void setParallelSearch(boolean parallelSearch) {
+		this.parallelSearch = parallelSearch;
+	}
+
+	public boolean isTrackChanges() {
+		return trackChanges;
+	}
+
+	/**
+	 * Sets whether the molecules affected by the statements added or removed in a transaction are
+	 * reindexed when the transaction completes.
+	 */
+	public void setTrackChanges(boolean trackChanges) {
+		this.trackChanges = trackChanges;
+	}
+
+	public void setSearchExecutor(ExecutorService searchExecutor) {
+		this.searchExecutor = searchExecutor;
+	}
+
+	/**
+	 * Executes a query on a searcher of this index. If parallel search is enabled the segments are searched
+	 * concurrently, each one into its own collector, and the hits of all segments are then merged into the
+	 * given collector.
+	 */
+	public void search(IndexSearcher searcher, Query query, Filter filter, LuceneResultsCollector collector)
+			throws IOException {
+		try {
+			ExecutorService executor = parallelSearch ? searchExecutor : null;
+			IndexReader[] segments = searcher.getSubReaders();
+			if (executor == null || filter != null || segments.length < 2) {
+				searcher.search(query, filter, collector);
+			} else {
+				searchInParallel(executor, searcher, segments, query, collector);
+			}
+		} finally {
+			collector.close();
+		}
+	}
+
+	private void searchInParallel(ExecutorService executor, IndexSearcher searcher, IndexReader[] segments,
+			Query query, LuceneResultsCollector collector) throws IOException {
+		// the weight is computed once for the whole index so that scores are the same as in serial search
+		final Weight weight = searcher.createNormalizedWeight(query);
+		List<Future<LuceneResultsCollector>> partials = new ArrayList<Future<LuceneResultsCollector>>();
+		int docBase = 0;
+		for (final IndexReader segment : segments) {
+			final int segmentDocBase = docBase;
+			final LuceneResultsCollector partial = collector.newPartial();
+			partials.add(executor.submit(new Callable<LuceneResultsCollector>() {
+				@Override
+				public LuceneResultsCollector call() throws IOException {
+					try {
+						partial.setNextReader(segment, segmentDocBase);
+						Scorer scorer = weight.scorer(segment, !partial.acceptsDocsOutOfOrder(), true);
+						if (scorer != null) {
+							scorer.score(partial);
+						}
+					} finally {
+						// the buffers belong to the search thread, so they are released there
+						partial.close();
+					}
+					return partial;
+				}
+			}));
+			docBase += segment.maxDoc();
+		}
+
+		try {
+			for (Future<LuceneResultsCollector> partial : partials) {
+				collector.merge(partial.get());
+			}
+		} catch (InterruptedException ex) {
+			for (Future<LuceneResultsCollector> partial : partials) {
+				partial.cancel(true);
+			}
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while searching " + getName(), ex);
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof IOException) {
+				throw (IOException) ex.getCause();
+			}
+			throw new IOException("Failed searching " + getName(), ex.getCause());
+		}
+	}
+
+	public long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Returns the complete, score-ordered results of a query computed against the given searcher generation
+	 * or null if they are not cached.
+	 */
+	public HitList getCachedResults(String query, long generation) {
+		return resultsCache.get(new QueryKey(normalizeQuery(query), generation));
+	}
+
+	/**
+	 * Caches the complete, score-ordered results of a query. Results from an outdated generation are ignored.
+	 */
+	public void cacheResults(String query, long generation, HitList results) {
+		if (generation != this.generation || results.size() > RESULTS_CACHE_SIZE / 10) {
+			return;
+		}
+		resultsCache.put(new QueryKey(normalizeQuery(query), generation), results);
+	}
+
+	/**
+	 * Estimates the number of hits of a query, see {@link HitCountEstimator}. Estimates are cached until the
+	 * index is refreshed.
+	 *
+	 * @return the estimate or -1 if the index is not operational
+	 */
+	public long estimateHits(String query) throws ParseException, IOException {
+		IndexSnapshot snapshot = acquire();
+		if (snapshot == null) {
+			return -1;
+		}
+		try {
+			QueryKey key = new QueryKey(normalizeQuery(query), snapshot.getGeneration());
+			Long estimate = estimatesCache.get(key);
+			if (estimate == null) {
+				estimate = estimator.estimate(snapshot.getSearcher(), parse(query));
+				estimatesCache.put(key, estimate);
+			}
+			return estimate;
+		} finally {
+			release(snapshot);
+		}
+	}
+
+	private static String normalizeQuery(String query) {
+		return query.trim().replaceAll("\\s+", " ");
+	}
+
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+		stats.put("name", name);
+		stats.put("generation", generation);
+		stats.put("format", format);
+		stats.put("parallelSearch", parallelSearch);
+		stats.put("directory", directory);
+		stats.put("trackChanges", trackChanges);
+		IndexSnapshot snapshot = acquire();
+		if (snapshot != null) {
+			try {
+				stats.put("maxDoc", snapshot.getReader().maxDoc());
+				stats.put("numDocs", snapshot.getReader().numDocs());
+				stats.put("lazyIdSegments", snapshot.getEntityIds().getLazySegmentCount());
+			} finally {
+				try {
+					release(snapshot);
+				} catch (IOException iox) {
+					// the statistics are complete anyway
+				}
 			}
 		}
-		return docToURIMapping;
+		stats.put("cacheSize", resultsCache.size());
+		stats.put("cacheWeight", resultsCache.getWeight());
+		stats.put("cacheHits", resultsCache.getHits());
+		stats.put("cacheMisses", resultsCache.getMisses());
+		stats.put("cacheEvictions", resultsCache.getEvictions());
+		stats.put("queryCacheHits", queryCache.getHits());
+		stats.put("queryCacheMisses", queryCache.getMisses());
+		return stats;
 	}
 
 	public static boolean isValidName(String indexName) {
@@ -1,41 +1,168 @@
 package com.ontotext.trree.plugin.lucene;
 
-import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Query;
 
 import com.ontotext.trree.sdk.StatementIterator;
+import org.slf4j.LoggerFactory;
 
+/**
+ * Iterates over Lucene hits in score order. The hits are either given upfront or streamed: the query is
+ * executed lazily in successive top-K windows, each one continuing after the last hit of the previous one.
+ * Windows grow geometrically so that a full iteration needs only a few passes over the index while an
+ * iteration that is closed early pays only for the windows it has actually consumed. A streaming iterator
+ * pins an index snapshot until it is exhausted or closed so all windows see the same documents.
+ */
 public class LuceneIterator extends StatementIterator {
+	static final int FIRST_WINDOW = 1000;
+	static final int WINDOW_GROWTH = 8;
 
-	private ScoreDoc[] results;
+	private HitList results;
 
 	private int index = 0;
 	private int upper = 0;
 	private int limit = 0;
 
+	// streaming state, query is null once no more windows are to be fetched
+	private LuceneIndex luceneIndex;
+	private IndexSnapshot snapshot;
+	private Query query;
+	private int window;
+	private int fetched;
+	private boolean hasLast;
+	private float lastScore;
+	private int lastId;
+
+	// where to cache the results if they all fit in the first window
+	private String cacheQuery;
+
 	public float score = 0;
 
-	public LuceneIterator(ScoreDoc[] results, int offset, int limit) {
+	// where the score of the current entity is recorded, null if the scores aren't needed
+	private RequestScores scores;
+	// the current entry of this iterator in the scores, guarded by the scores
+	RequestScores.Position position;
+
+	public LuceneIterator(HitList results, int offset, int limit) {
 		this.results = results;
 		this.index = offset;
 		this.upper = offset + limit;
 		this.limit = limit;
 	}
 
+	/**
+	 * Creates a streaming iterator over the results of a query. The iterator takes over the snapshot and
+	 * releases it when done.
+	 *
+	 * @param limit maximum number of results to produce or 0 for all of them
+	 */
+	public LuceneIterator(LuceneIndex luceneIndex, IndexSnapshot snapshot, Query query, int limit) {
+		this.results = HitList.EMPTY;
+		this.luceneIndex = luceneIndex;
+		this.snapshot = snapshot;
+		this.query = query;
+		this.limit = limit;
+		this.window = limit > 0 ? Math.min(limit, FIRST_WINDOW) : FIRST_WINDOW;
+	}
+
+	/**
+	 * Makes the iterator cache its results in the index if they turn out to be complete after the first
+	 * window.
+	 */
+	public void setResultsCache(String query) {
+		cacheQuery = query;
+	}
+
+	/**
+	 * Makes the score of the current entity available to <code>luc:score</code> while the iterator is open.
+	 */
+	public void setRequestScores(RequestScores scores) {
+		this.scores = scores;
+	}
+
 	@Override
 	public boolean next() {
-		if (index < upper) {
-			subject = object = results[index].doc & 0xFFFFFFFFL;
-			score = results[index].score;
-			index++;
-			return true;
-		} else {
+		leaveScores();
+		if (index >= upper && !fetchNextWindow()) {
 			results = null;
 			return false;
 		}
+		subject = object = results.id(index) & 0xFFFFFFFFL;
+		score = results.score(index);
+		index++;
+		if (scores != null) {
+			scores.enter(this, subject, score);
+		}
+		return true;
+	}
+
+	private void leaveScores() {
+		if (scores != null) {
+			scores.leave(this, subject);
+		}
+	}
+
+	private boolean fetchNextWindow() {
+		if (query == null) {
+			return false;
+		}
+		int size = window;
+		if (limit > 0) {
+			size = Math.min(size, limit - fetched);
+		}
+		if (size <= 0) {
+			stopStreaming();
+			return false;
+		}
+		EntityIds entityIds = snapshot.getEntityIds();
+		LuceneResultsCollector collector = hasLast
+				? new LuceneResultsCollector(entityIds, size, lastScore, lastId)
+				: new LuceneResultsCollector(entityIds, size);
+		try {
+			luceneIndex.search(snapshot.getSearcher(), query, null, collector);
+		} catch (Exception e) {
+			LoggerFactory.getLogger(getClass()).error("Failed fetching lucene results for '" + query + "'", e);
+			stopStreaming();
+			return false;
+		}
+		HitList hits = collector.getResults();
+		results = hits;
+		index = 0;
+		upper = hits.size();
+		fetched += hits.size();
+		if (hits.size() < size) {
+			// this is the last window
+			if (!hasLast && cacheQuery != null) {
+				luceneIndex.cacheResults(cacheQuery, snapshot.getGeneration(), hits);
+			}
+			stopStreaming();
+		} else {
+			hasLast = true;
+			lastScore = hits.score(hits.size() - 1);
+			lastId = hits.id(hits.size() - 1);
+			if (window <= Integer.MAX_VALUE / WINDOW_GROWTH) {
+				window *= WINDOW_GROWTH;
+			}
+		}
+		return upper > 0;
+	}
+
+	/**
+	 * Stops fetching windows and releases the snapshot of the index.
+	 */
+	private void stopStreaming() {
+		query = null;
+		if (snapshot != null) {
+			try {
+				luceneIndex.release(snapshot);
+			} catch (Exception e) {
+				LoggerFactory.getLogger(getClass()).error("Failed releasing lucene index snapshot", e);
+			}
+			snapshot = null;
+		}
 	}
 
 	public long size() {
-		return limit;
+		return luceneIndex == null ? limit : fetched;
 	}
 
 	
@@ -43,9 +170,9 @@ public class LuceneIterator extends StatementIterator {
 	public void close() {
 		// shirnk the rest
 		upper = index;
-		
-	}
-	public boolean isClosed() {
-		return results == null;
+		stopStreaming();
+		// no longer provides scores
+		leaveScores();
+		results = null;
 	}
 }
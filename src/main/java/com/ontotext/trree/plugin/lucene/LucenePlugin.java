@@ -5,6 +5,7 @@ import com.ontotext.trree.sdk.Entities.Scope;
 import com.ontotext.trree.sdk.impl.RequestContextImpl;
 import com.ontotext.trree.util.FileUtils;
 import gnu.trove.TLongHashSet;
+import gnu.trove.TLongIterator;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.Field.Index;
@@ -15,7 +16,8 @@ import org.apache.lucene.index.Term;
 import org.apache.lucene.queryParser.ParseException;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
-import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.QueryWrapperFilter;
+import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.store.LockObtainFailedException;
 import org.eclipse.rdf4j.model.IRI;
@@ -23,12 +25,24 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
 public class LucenePlugin extends PluginBase implements Preprocessor, PluginDependency, PatternInterpreter,
-		UpdateInterpreter
+		UpdateInterpreter, StatementListener, PluginTransactionListener
 {
 	static final String FIELD_ID = "id";
 	static final String FIELD_TEXT = "mol";
@@ -37,11 +51,15 @@ public class LucenePlugin extends PluginBase implements Preprocessor, PluginDepe
 	static final String FIELD_LASTINDEXED = "lastindexed";
 	static final String FIELD_MOLECULE = "molecule";
 
-	static final String ATTRIBUTE_ITERATORS = "lucene.iterators";
+	static final String ATTRIBUTE_SCORES = "lucene.scores";
+	static final String ATTRIBUTE_LIMITS = "lucene.limits";
 	static final String TEMP_SUFFIX = ".temp";
-	static final String OLD_SUFFIX = ".old";
+	// number of consecutive entity ids a createIndex worker takes at a time
+	static final int INDEXING_CHUNK = 10000;
+	// number of entity values cached while creating an index
+	static final int VALUE_CACHE_SIZE = 200000;
 
-	private Map<String, LuceneIndex> indices = new HashMap<String, LuceneIndex>();
+	private Map<String, LuceneIndex> indices = new ConcurrentHashMap<String, LuceneIndex>();
 	private PluginLocator pluginLocator;
 
 	private IndexFilter indexFilter = new IndexFilter();
@@ -49,6 +67,8 @@ public class LucenePlugin extends PluginBase implements Preprocessor, PluginDepe
 	private Pattern excludePattern = null;
 
 	private int moleculeSize = 0;
+	private int moleculeFanOut = 0;
+	private int moleculeMaxEntities = 0;
 	private String[] languages = null;
 	private Scorer scorer = null;
 	private String analyzer = null;
@@ -56,12 +76,39 @@ public class LucenePlugin extends PluginBase implements Preprocessor, PluginDepe
 	private Set<IRI> excludePredicates = null;
 	private Set<IRI> includeEntities = null;
 	private Set<IRI> excludeEntities = null;
+	private boolean parallelSearch = false;
+	private String directory = LuceneIndex.DIRECTORY_SIMPLE;
+	private boolean trackChanges = false;
+
+	// the subjects of the relevant statements added or removed by the current transaction by index name
+	private Map<String, TrackedChanges> changes = new HashMap<String, TrackedChanges>();
+	// the changed subjects of indices that were being built, reindexed after the build by the next transaction
+	private Map<String, TrackedChanges> deferredChanges = new HashMap<String, TrackedChanges>();
+	// whether an index tracks changes, checked when a transaction starts
+	private boolean trackingChanges;
+	// entities passed to addToIndex by transaction id and index name, applied before the transaction commits;
+	// the inner maps are guarded by the outer one
+	private final Map<Long, Map<String, TLongHashSet>> pendingAdditions =
+			new ConcurrentHashMap<Long, Map<String, TLongHashSet>>();
+
+	// searches the segments of indices with parallel search enabled
+	private ExecutorService searchExecutor;
+	// runs the index builds requested with the "async" value
+	private ExecutorService buildExecutor;
+	// the last build job of each index
+	private Map<String, BuildJob> jobs = new ConcurrentHashMap<String, BuildJob>();
 
 	private static final String TRUE = "true";
 	private static final String FALSE = "false";
 	private static final String NO = "no";
 	private static final String YES = "yes";
 	private static final String SQUARED = "squared";
+	private static final String ASYNC = "async";
+	// how long to wait for the cancelled build jobs to stop on shutdown, in seconds
+	private static final int BUILD_SHUTDOWN_TIMEOUT = 30;
+	// the most changed subjects or affected molecules of a transaction reindexed by an index that tracks
+	// changes, larger transactions are left for rebuilding the index
+	static final int MAX_TRACKED_CHANGES = 100000;
 
 	private long idSetParam;
 	private long idAnalyzer;
@@ -75,11 +122,67 @@ public class LucenePlugin extends PluginBase implements Preprocessor, PluginDepe
 	private long idExcludePredicates;
 	private long idExcludeEntities;
 	private long idMoleculeSize;
+	private long idMoleculeFanOut;
+	private long idMoleculeMaxEntities;
 	private long idUseRdfRank;
 	private long idCreateIndex;
 	private long idUpdateIndex;
 	private long idAddToIndex;
 	private long idScore;
+	private long idLimit;
+	private long idStats;
+	private long idParallelSearch;
+	private long idDirectory;
+	private long idTrackChanges;
+	private long idJobStatus;
+	private long idJobs;
+	private long idCancelJob;
+
+	/**
+	 * The parameters of a build, taken when it is requested so that setting the parameters while a build
+	 * runs in the background doesn't affect it.
+	 */
+	private static final class BuildSettings {
+		final IndexFilter indexFilter = new IndexFilter();
+		final IncludeFilter includeFilter = new IncludeFilter();
+		final Pattern excludePattern;
+		final int moleculeSize;
+		final int moleculeFanOut;
+		final int moleculeMaxEntities;
+		final String[] languages;
+		final Scorer scorer;
+		final String analyzer;
+		final Set<IRI> includePredicates;
+		final Set<IRI> excludePredicates;
+		final Set<IRI> includeEntities;
+		final Set<IRI> excludeEntities;
+		final boolean parallelSearch;
+		final String directory;
+		final boolean trackChanges;
+
+		BuildSettings(LucenePlugin plugin) {
+			indexFilter.copyFrom(plugin.indexFilter);
+			includeFilter.copyFrom(plugin.includeFilter);
+			excludePattern = plugin.excludePattern;
+			moleculeSize = plugin.moleculeSize;
+			moleculeFanOut = plugin.moleculeFanOut;
+			moleculeMaxEntities = plugin.moleculeMaxEntities;
+			languages = plugin.languages != null ? plugin.languages.clone() : null;
+			scorer = plugin.scorer;
+			analyzer = plugin.analyzer;
+			includePredicates = copy(plugin.includePredicates);
+			excludePredicates = copy(plugin.excludePredicates);
+			includeEntities = copy(plugin.includeEntities);
+			excludeEntities = copy(plugin.excludeEntities);
+			parallelSearch = plugin.parallelSearch;
+			directory = plugin.directory;
+			trackChanges = plugin.trackChanges;
+		}
+
+		private static Set<IRI> copy(Set<IRI> set) {
+			return set != null ? new HashSet<IRI>(set) : null;
+		}
+	}
 
 	static <T> T instantiateClass(String className) {
 		try {
@@ -110,11 +213,25 @@ public class LucenePlugin extends PluginBase implements Preprocessor, PluginDepe
 		idExcludePredicates = entities.put(Lucene.EXCLUDE_PREDICATES, Scope.SYSTEM);
 		idExcludeEntities = entities.put(Lucene.EXCLUDE_ENTITIES, Scope.SYSTEM);
 		idMoleculeSize = entities.put(Lucene.MOLECULE_SIZE, Scope.SYSTEM);
+		idMoleculeFanOut = entities.put(Lucene.MOLECULE_FAN_OUT, Scope.SYSTEM);
+		idMoleculeMaxEntities = entities.put(Lucene.MOLECULE_MAX_ENTITIES, Scope.SYSTEM);
 		idUseRdfRank = entities.put(Lucene.USE_RDF_RANK, Scope.SYSTEM);
 		idCreateIndex = entities.put(Lucene.CREATE_INDEX, Scope.SYSTEM);
 		idUpdateIndex = entities.put(Lucene.UPDATE_INDEX, Scope.SYSTEM);
 		idAddToIndex = entities.put(Lucene.ADD_TO_INDEX, Scope.SYSTEM);
 		idScore = entities.put(Lucene.SCORE, Scope.SYSTEM);
+		idLimit = entities.put(Lucene.LIMIT, Scope.SYSTEM);
+		idStats = entities.put(Lucene.STATS, Scope.SYSTEM);
+		idParallelSearch = entities.put(Lucene.PARALLEL_SEARCH, Scope.SYSTEM);
+		idDirectory = entities.put(Lucene.DIRECTORY, Scope.SYSTEM);
+		idTrackChanges = entities.put(Lucene.TRACK_CHANGES, Scope.SYSTEM);
+		idJobStatus = entities.put(Lucene.JOB_STATUS, Scope.SYSTEM);
+		idJobs = entities.put(Lucene.JOBS, Scope.SYSTEM);
+		idCancelJob = entities.put(Lucene.CANCEL_JOB, Scope.SYSTEM);
+
+		searchExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+				daemonThreads("lucene-search-"));
+		buildExecutor = Executors.newCachedThreadPool(daemonThreads("lucene-build-"));
 
 		// locate the existing lucene indices
 		File dataDir = getDataDir();
@@ -140,7 +257,8 @@ public class LucenePlugin extends PluginBase implements Preprocessor, PluginDepe
 				}
 
 				try {
-					LuceneIndex index = new LuceneIndex(indexName, dir);
+					LuceneIndex.deleteStaleDataDirs(dir);
+					LuceneIndex index = new LuceneIndex(indexName, LuceneIndex.findDataDir(dir));
 					// register this index under its name if it's operational
 					registerIndex(indexName, index);
 				} catch (Exception ex) {
@@ -159,19 +277,86 @@ public class LucenePlugin extends PluginBase implements Preprocessor, PluginDepe
 		includeFilter.initialize("literals");
 	}
 
-	private ScoreDoc[] search(String indexName, String query) throws ParseException, IOException {
-		ScoreDoc[] result = null;
+	private HitList search(String indexName, String query, int limit) throws ParseException, IOException {
+		HitList result = null;
 		LuceneIndex index = indices.get(indexName);
-		if (index != null) {
-			Query parsedQuery = index.getParser().parse(query);
-			IndexSearcher searcher = index.getSearcher();
-			LuceneResultsCollector collector = new LuceneResultsCollector(index.getDocToURIMapping());
-			searcher.search(parsedQuery, collector);
-			result = collector.getResults();
+		IndexSnapshot snapshot = index != null ? index.acquire() : null;
+		if (snapshot != null) {
+			try {
+				long generation = snapshot.getGeneration();
+				if (limit == 0) {
+					result = index.getCachedResults(query, generation);
+					if (result != null) {
+						return result;
+					}
+				}
+				Query parsedQuery = index.parse(query);
+				LuceneResultsCollector collector = new LuceneResultsCollector(snapshot.getEntityIds(), limit);
+				index.search(snapshot.getSearcher(), parsedQuery, null, collector);
+				result = collector.getResults();
+				if (limit == 0) {
+					index.cacheResults(query, generation, result);
+				}
+			} finally {
+				index.release(snapshot);
+			}
 		}
 		return result;
 	}
 
+	/**
+	 * Checks if a single entity matches a query and retrieves its score. The query is restricted to the
+	 * document of the entity, found by its indexed id, so only that document is scored.
+	 *
+	 * @return a list with the hit for the entity or an empty list if it does not match the query
+	 */
+	private HitList lookup(LuceneIndex index, String query, long subject) throws ParseException, IOException {
+		IndexSnapshot snapshot = index.acquire();
+		if (snapshot == null) {
+			return HitList.EMPTY;
+		}
+		try {
+			Query parsedQuery = index.parse(query);
+			QueryWrapperFilter idFilter = new QueryWrapperFilter(new TermQuery(index.idTerm(subject)));
+			LuceneResultsCollector collector = new LuceneResultsCollector(snapshot.getEntityIds(), 1);
+			index.search(snapshot.getSearcher(), parsedQuery, idFilter, collector);
+			return collector.getResults();
+		} finally {
+			index.release(snapshot);
+		}
+	}
+
+	/**
+	 * Opens a streaming iterator over the results of a query. Nothing is searched until the iterator is
+	 * advanced for the first time.
+	 */
+	private LuceneIterator openIterator(String indexName, String query, int limit) {
+		LuceneIndex index = indices.get(indexName);
+		IndexSnapshot snapshot = index != null ? index.acquire() : null;
+		if (snapshot != null) {
+			try {
+				HitList cached = index.getCachedResults(query, snapshot.getGeneration());
+				if (cached != null) {
+					index.release(snapshot);
+					return new LuceneIterator(cached, 0, limit > 0 ? Math.min(limit, cached.size()) : cached.size());
+				}
+				Query parsedQuery = index.parse(query);
+				LuceneIterator iter = new LuceneIterator(index, snapshot, parsedQuery, limit);
+				iter.setResultsCache(query);
+				return iter;
+			} catch (Exception e) {
+				LoggerFactory.getLogger(getClass()).error(
+						"Failed executing lucene query '" + query + "' on index '" + indexName + "'", e);
+				try {
+					index.release(snapshot);
+				} catch (IOException iox) {
+					// already reported the failure of the query
+				}
+			}
+		}
+		return new LuceneIterator(HitList.EMPTY, 0, 0);
+	}
+
 	@Override
 	public StatementIterator interpret(long subject, long predicate, long object, long context,
 									   PluginConnection pluginConnection, RequestContext requestContext) {
@@ -205,6 +390,22 @@ public class LucenePlugin extends PluginBase implements Preprocessor, PluginDepe
 					excludeEntities = parseURIList(value);
 				} else if (Utils.match(subject, idMoleculeSize)) {
 					moleculeSize = Integer.parseInt(value);
+				} else if (Utils.match(subject, idMoleculeFanOut)) {
+					moleculeFanOut = parseLimit(value);
+				} else if (Utils.match(subject, idMoleculeMaxEntities)) {
+					moleculeMaxEntities = parseLimit(value);
+				} else if (Utils.match(subject, idParallelSearch)) {
+					parallelSearch = value.equalsIgnoreCase(YES) || value.equalsIgnoreCase(TRUE);
+				} else if (Utils.match(subject, idTrackChanges)) {
+					trackChanges = value.equalsIgnoreCase(YES) || value.equalsIgnoreCase(TRUE);
+				} else if (Utils.match(subject, idDirectory)) {
+					value = value.trim().toLowerCase();
+					if (LuceneIndex.isValidDirectory(value)) {
+						directory = value;
+					} else {
+						getLogger().error("Bad value '" + value + "' passed to " + Lucene.DIRECTORY);
+						booleanResult = false;
+					}
 				} else if (Utils.match(subject, idLanguages)) {
 					value = value.trim();
 					languages = (value.length() > 0) ? value.split("\\s*,\\s*") : null;
@@ -266,22 +467,61 @@ public class LucenePlugin extends PluginBase implements Preprocessor, PluginDepe
 			printDeprecationWarning();
 
 			String suffix = Utils.matchPrefix(Utils.getString(pluginConnection.getEntities(), subject), Lucene.NAMESPACE);
-			booleanResult = suffix == null ? false : createIndex(suffix, pluginConnection);
+			booleanResult = suffix == null ? false : buildIndex(suffix, true, object, pluginConnection);
 		} else if (Utils.match(predicate, idUpdateIndex)) {
 			// Prints warning on updating an index
 			printDeprecationWarning();
 
 			String suffix = Utils.matchPrefix(Utils.getString(pluginConnection.getEntities(), subject), Lucene.NAMESPACE);
-			booleanResult = suffix == null ? false : updateIndex(suffix, pluginConnection);
+			booleanResult = suffix == null ? false : buildIndex(suffix, false, object, pluginConnection);
 		} else if (Utils.match(predicate, idAddToIndex)) {
 			String indexName = Utils.matchPrefix(Utils.getString(pluginConnection.getEntities(), subject), Lucene.NAMESPACE);
 			if (indexName != null) {
-				booleanResult = addToIndex(indexName, object, pluginConnection);
+				booleanResult = addToIndex(indexName, new long[] { object }, pluginConnection);
 			} else {
 				booleanResult = false;
 			}
 		} else if (Utils.match(predicate, idScore)) {
 			return new ScoreIterator(subject, predicate, object, this, pluginConnection.getEntities(), requestContext);
+		} else if (Utils.match(predicate, idLimit)) {
+			String indexName = Utils.matchPrefix(Utils.getString(pluginConnection.getEntities(), subject), Lucene.NAMESPACE);
+			booleanResult = indexName != null && setLimit(requestContext, indexName,
+					Utils.getString(pluginConnection.getEntities(), object));
+		} else if (Utils.match(predicate, idStats)) {
+			String indexName = Utils.matchPrefix(Utils.getString(pluginConnection.getEntities(), subject), Lucene.NAMESPACE);
+			LuceneIndex index = indexName != null ? indices.get(indexName) : null;
+			if (index == null) {
+				return StatementIterator.EMPTY;
+			}
+			String stats = new JSONizer().add(index.getStatistics()).toString();
+			return new LiteralIterator(subject, predicate, object, stats, pluginConnection.getEntities());
+		} else if (Utils.match(predicate, idJobStatus)) {
+			String indexName = Utils.matchPrefix(Utils.getString(pluginConnection.getEntities(), subject), Lucene.NAMESPACE);
+			BuildJob job = indexName != null ? jobs.get(indexName) : null;
+			if (job == null) {
+				return StatementIterator.EMPTY;
+			}
+			String status = new JSONizer().add(job.getStatus()).toString();
+			return new LiteralIterator(subject, predicate, object, status, pluginConnection.getEntities());
+		} else if (Utils.match(predicate, idJobs)) {
+			if (subject == 0) {
+				// a statement per index with the status of its last build
+				return new JobsIterator(predicate, object, new ArrayList<BuildJob>(jobs.values()),
+						pluginConnection.getEntities());
+			}
+			List<Map<String, Object>> statuses = new ArrayList<Map<String, Object>>();
+			for (BuildJob job : jobs.values()) {
+				statuses.add(job.getStatus());
+			}
+			String status = new JSONizer().add(statuses).toString();
+			return new LiteralIterator(subject, predicate, object, status, pluginConnection.getEntities());
+		} else if (Utils.match(predicate, idCancelJob)) {
+			String indexName = Utils.matchPrefix(Utils.getString(pluginConnection.getEntities(), subject), Lucene.NAMESPACE);
+			BuildJob job = indexName != null ? jobs.get(indexName) : null;
+			booleanResult = job != null && job.cancel();
+			if (booleanResult) {
+				getLogger().info("Cancelling the build of " + getIndexDesc(indexName));
+			}
 		}
 
 		if (booleanResult != null) {
@@ -299,36 +539,50 @@ public class LucenePlugin extends PluginBase implements Preprocessor, PluginDepe
 			return StatementIterator.EMPTY;
 		}
 
+		if (!pendingAdditions.isEmpty()) {
+			// the entities added earlier in the same transaction are found as before they were batched
+			applyPendingAdditions(pluginConnection);
+		}
+
 		String queryString = pluginConnection.getEntities().get(object).stringValue();
-		ScoreDoc[] results = null;
-		try {
-			results = search(suffix, queryString);
-			if (results == null) {
-				results = new ScoreDoc[0];
+		LuceneIterator iter;
+		LuceneIndex index = indices.get(suffix);
+		if (subject != 0 && index != null && index.isIdIndexed()) {
+			HitList results;
+			try {
+				results = lookup(index, queryString, subject);
+			} catch (Exception e) {
+				LoggerFactory.getLogger(getClass()).error(
+						"Failed executing lucene query '" + queryString + "' on index '" + suffix + "'", e);
+				results = HitList.EMPTY;
 			}
-		} catch (Exception e) {
-			LoggerFactory.getLogger(getClass()).error(
-					"Failed executing lucene query '" + queryString + "' on index '" + suffix + "'", e);
-			results = new ScoreDoc[0];
-		}
-		int offset = 0, limit = results.length;
-		if (subject != 0) {
-			// check if the subject is in the results
-			limit = 0;
-			for (ScoreDoc hit : results) {
-				if (hit.doc == subject) {
-					limit = 1;
-					break;
+			iter = new LuceneIterator(results, 0, results.size());
+		} else if (subject != 0) {
+			// older indices can't be searched by id so look for the subject among all results
+			HitList results = null;
+			try {
+				results = search(suffix, queryString, 0);
+				if (results == null) {
+					results = HitList.EMPTY;
 				}
-				offset++;
+			} catch (Exception e) {
+				LoggerFactory.getLogger(getClass()).error(
+						"Failed executing lucene query '" + queryString + "' on index '" + suffix + "'", e);
+				results = HitList.EMPTY;
 			}
+			// check if the subject is in the results
+			int offset = results.indexOf(subject);
+			iter = offset >= 0 ? new LuceneIterator(results, offset, 1) : new LuceneIterator(HitList.EMPTY, 0, 0);
+		} else {
+			iter = openIterator(suffix, queryString, getLimit(requestContext, suffix));
 		}
-		LuceneIterator iter = new LuceneIterator(results, offset, limit);
 		iter.subject = subject;
 		iter.predicate = predicate;
 		iter.object = object;
 		iter.context = context;
-		addIterator(requestContext, iter);
+		if (requestContext != null) {
+			iter.setRequestScores(getScores(requestContext));
+		}
 		return iter;
 	}
 
@@ -339,6 +593,15 @@ public class LucenePlugin extends PluginBase implements Preprocessor, PluginDepe
 	 * if the next one needs a similar modification.
 	 */
 	boolean createIndex(String indexName, PluginConnection pluginConnection) {
+		return createIndex(indexName, pluginConnection, new BuildSettings(this), new IndexingProgress());
+	}
+
+	/**
+	 * Creates an index with the given parameters reporting the number of entities indexed so far to the
+	 * progress, which also tells whether the build has been cancelled.
+	 */
+	private boolean createIndex(String indexName, PluginConnection pluginConnection, BuildSettings settings,
+			IndexingProgress progress) {
 		if (pluginConnection.getProperties().isReadOnly()) {
 			getLogger().error("Can't create Lucene index when in read-only mode");
 			return false;
@@ -367,11 +630,14 @@ public class LucenePlugin extends PluginBase implements Preprocessor, PluginDepe
 		}
 
 		try {
-			index.configureAnalyzerFactory(analyzer);
+			index.configureAnalyzerFactory(settings.analyzer);
 		} catch (Exception ex) {
-			getLogger().error("Failed to initialize analyzer " + analyzer, ex);
+			getLogger().error("Failed to initialize analyzer " + settings.analyzer, ex);
 			return false;
 		}
+		index.setParallelSearch(settings.parallelSearch);
+		index.setDirectory(settings.directory);
+		index.setTrackChanges(settings.trackChanges);
 
 		Entities entities = pluginConnection.getEntities();
 		Statements statements = pluginConnection.getStatements();
@@ -380,48 +646,54 @@ public class LucenePlugin extends PluginBase implements Preprocessor, PluginDepe
 		getLogger().info("Start creating " + indexDesc);
 
 		MoleculeModel moleculesModel = new MoleculeModel();
-		moleculesModel.setIncludeFilter(includeFilter);
-		moleculesModel.setIndexFilter(indexFilter);
-		moleculesModel.setExcludePattern(excludePattern);
-		moleculesModel.setDegree(moleculeSize);
+		moleculesModel.setIncludeFilter(settings.includeFilter);
+		moleculesModel.setIndexFilter(settings.indexFilter);
+		moleculesModel.setExcludePattern(settings.excludePattern);
+		moleculesModel.setDegree(settings.moleculeSize);
+		moleculesModel.setMaxFanOut(settings.moleculeFanOut);
+		moleculesModel.setMaxEntities(settings.moleculeMaxEntities);
+		ValueCache valueCache = new ValueCache(VALUE_CACHE_SIZE);
+		moleculesModel.setValueCache(valueCache);
 		moleculesModel.setStatements(statements);
 		moleculesModel.setEntities(entities);
-		moleculesModel.setLanguages(languages);
+		moleculesModel.setLanguages(settings.languages);
 		moleculesModel.setDataDir(tempIndexDir);
-		moleculesModel.setIncludePredicates(includePredicates);
-		moleculesModel.setExcludePredicates(excludePredicates);
-		moleculesModel.setIncludeEntities(includeEntities);
-		moleculesModel.setExcludeEntities(excludeEntities);
+		moleculesModel.setIncludePredicates(settings.includePredicates);
+		moleculesModel.setExcludePredicates(settings.excludePredicates);
+		moleculesModel.setIncludeEntities(settings.includeEntities);
+		moleculesModel.setExcludeEntities(settings.excludeEntities);
 
 		getLogger().info("Initializing molecules...");
 
 		try {
-			moleculesModel.initialize();
+			moleculesModel.initialize(progress);
 		} catch (IOException iox) {
-			getLogger().error("Failed to compute molecules", iox);
+			if (progress.isCancelled()) {
+				getLogger().info("Cancelled creating " + getIndexDesc(indexName));
+			} else {
+				getLogger().error("Failed to compute molecules", iox);
+			}
+			moleculesModel.shutDown();
 			return false;
 		}
 
 		getLogger().info("Finished initializing molecules.");
+		if (moleculesModel.getEntityBits() != null) {
+			getLogger().info(moleculesModel.getEntityBits().getIndexableCount() + " entities will be indexed");
+		}
 
 		long numberOfEntities = entities.size();
+		progress.setTotal(numberOfEntities);
+		int threads = (int) Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(),
+				numberOfEntities / INDEXING_CHUNK));
 
-		Field fieldId = new Field(FIELD_ID, "", Store.YES, Index.NO);
-		Field fieldText = new Field(FIELD_TEXT, "", Store.NO, Index.ANALYZED);
-
-		Document doc = new Document();
-
-		doc.add(fieldId);
-		doc.add(fieldText);
-
-		TLongHashSet moleculeSet = new TLongHashSet();
-
-		getLogger().info("Start indexing " + numberOfEntities + " entities and their molecules...");
+		getLogger().info("Start indexing " + numberOfEntities + " entities and their molecules using " + threads
+				+ " thread(s)...");
 
 		IndexWriter writer = null;
 		try {
 			try {
-				writer = index.getWriter();
+				writer = index.getWriter(threads);
 			} catch (CorruptIndexException e) {
 				getLogger().error("The " + indexDesc + " is corrupted", e);
 				return false;
@@ -435,50 +707,22 @@ public class LucenePlugin extends PluginBase implements Preprocessor, PluginDepe
 
 			assert (writer != null);
 
-			for (long id = 1; id <= numberOfEntities; id++) {
-				if (id % 100000 == 0) {
-					getLogger().info("Indexed " + id + " entities");
-				}
-
-				Entities.Type type = entities.getType(id);
-				switch (type) {
-				case URI:
-					if (!indexFilter.indexURI()) {
-						continue;
-					}
-					break;
-				case BNODE:
-					if (!indexFilter.indexBNode()) {
-						continue;
-					}
-					break;
-				case LITERAL:
-					if (!indexFilter.indexLiteral()) {
-						continue;
-					}
-					break;
-				}
-
-				// only index base equivalence classes
-				if (entities.getClass(id) != id) {
-					continue;
-				}
-
-				moleculeSet.clear();
-				String molecule = moleculesModel.getMolecule(id, moleculeSet);
-				if (molecule != null) {
-					// update the fields
-					fieldId.setValue(Long.toString(id));
-					fieldText.setValue(molecule);
-					// update fingerprint
-					fingerprint ^= id;
-					fingerprint ^= molecule.hashCode();
-					// use scorer (if present) to boost the document weight
-					if (scorer != null) {
-						doc.setBoost((float) scorer.score(id));
+			if (threads == 1) {
+				fingerprint = new MoleculeIndexer(index, writer, moleculesModel, entities, numberOfEntities,
+						new AtomicLong(1), settings.scorer, progress).call();
+			} else {
+				// a background build already has a thread-safe connection, which its workers share
+				boolean ownConnection = !(pluginConnection instanceof ThreadsafePluginConnecton);
+				ThreadsafePluginConnecton connection = ownConnection ? pluginConnection.getThreadsafeConnection()
+						: (ThreadsafePluginConnecton) pluginConnection;
+				try {
+					fingerprint = indexInParallel(index, writer, moleculesModel.copyFor(connection.getEntities(),
+							connection.getStatements()), connection.getEntities(), numberOfEntities, threads,
+							settings.scorer, progress);
+				} finally {
+					if (ownConnection) {
+						connection.close();
 					}
-					// add this molecule to the index
-					writer.addDocument(doc);
 				}
 			}
 			storeLastIndexedToIndex(numberOfEntities, writer);
@@ -486,59 +730,313 @@ public class LucenePlugin extends PluginBase implements Preprocessor, PluginDepe
 			writer.commit();
 			writer.close();
 		} catch (IOException iox) {
-			getLogger().error("Failed storing " + indexDesc, iox);
+			if (progress.isCancelled()) {
+				getLogger().info("Cancelled creating " + indexDesc);
+			} else {
+				getLogger().error("Failed storing " + indexDesc, iox);
+			}
 			return false;
 		} finally {
-			try {
-				writer.close();
-			} catch (IOException iox) {
-				getLogger().error("Failed closing " + indexDesc, iox);
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (IOException iox) {
+					getLogger().error("Failed closing " + indexDesc, iox);
+				}
 			}
+			// closes the graph whatever the outcome, e.g. when the build has been cancelled
+			moleculesModel.shutDown();
 		}
 
-		moleculesModel.shutDown();
+		// the cache is only meant for a full build, don't keep it alive with the model
+		moleculesModel.setValueCache(null);
 
-		getLogger().info("Finished creating " + indexDesc);
+		getLogger().info("Finished creating " + indexDesc + ", entity value cache " + valueCache);
 
 		index.setFingerprint(fingerprint);
+		try {
+			// written before the move, which makes the new build the latest one, so that it is never found
+			// without its settings
+			index.writeProperties();
+		} catch (IOException iox) {
+			getLogger().error("Failed writing the properties of " + indexDesc, iox);
+			return false;
+		}
 
-		// drop previous index
-		dropIndex(indexName);
-
+		// the previous build keeps serving queries while the new one gets its own directory and is opened
 		File indexDir = new File(getDataDir() + File.separator + indexName);
-		File oldIndexDir = new File(getDataDir() + File.separator + indexName + OLD_SUFFIX);
-
-		// move lucene files from the old index directory to a temporary folder
-		oldIndexDir.mkdirs();
-		FileUtils.moveDirectoryFilesTo(indexDir, oldIndexDir);
-
-		// move new lucene files from their temporary directory to the actual one
+		File generationDir = LuceneIndex.nextDataDir(indexDir);
 		indexDir.mkdirs();
-		FileUtils.moveDirectoryFilesTo(tempIndexDir, indexDir);
-		// update index with its new location
+		if (!tempIndexDir.renameTo(generationDir)) {
+			getLogger().error("Failed moving the new " + indexDesc + " to " + generationDir.getAbsolutePath());
+			FileUtils.recursiveDelete(tempIndexDir);
+			return false;
+		}
 		try {
-			index.setDataDir(indexDir);
+			// opens the new searcher and prepares its entity ids
+			index.setDataDir(generationDir);
 		} catch (IOException iox) {
 			getLogger().error("The newly produced index is not usable", iox);
+			FileUtils.recursiveDelete(generationDir);
 			return false;
+		}
+
+		replaceIndex(indexName, index);
+
+		return true;
+	}
+
+	/**
+	 * Indexes the entities of a single worker thread. The workers take chunks of consecutive entity ids in
+	 * turn so that the ones that happen to get larger molecules don't hold the others back. Each worker has
+	 * its own document, the index writer is shared.
+	 */
+	private class MoleculeIndexer implements Callable<Long> {
+		private final IndexWriter writer;
+		private final MoleculeModel moleculesModel;
+		private final Entities entities;
+		private final long numberOfEntities;
+		// the next entity id to be taken by a worker
+		private final AtomicLong nextId;
+		private final Scorer scorer;
+		private final IndexingProgress progress;
+		// the entities that get documents, null to check each entity
+		private final EntityBits entityBits;
+
+		private final EntityIdField fieldId;
+		private final MoleculeText molecule = new MoleculeText();
+		private final Field fieldText = new Field(FIELD_TEXT, molecule);
+		private final Document doc = new Document();
+
+		MoleculeIndexer(LuceneIndex index, IndexWriter writer, MoleculeModel moleculesModel, Entities entities,
+				long numberOfEntities, AtomicLong nextId, Scorer scorer, IndexingProgress progress) {
+			this.fieldId = index.newIdField();
+			this.writer = writer;
+			this.moleculesModel = moleculesModel;
+			this.entities = entities;
+			this.numberOfEntities = numberOfEntities;
+			this.nextId = nextId;
+			this.scorer = scorer;
+			this.progress = progress;
+			this.entityBits = moleculesModel.getEntityBits();
+			doc.add(fieldId.getField());
+			doc.add(fieldText);
+		}
+
+		/**
+		 * @return the fingerprint of the indexed molecules
+		 */
+		@Override
+		public Long call() throws IOException {
+			long fingerprint = 0;
+			long first;
+			while ((first = nextId.getAndAdd(INDEXING_CHUNK)) <= numberOfEntities) {
+				if (Thread.currentThread().isInterrupted()) {
+					throw new InterruptedIOException("Indexing interrupted");
+				}
+				if (progress.isCancelled()) {
+					throw new InterruptedIOException("Indexing cancelled");
+				}
+				long last = Math.min(first + INDEXING_CHUNK - 1, numberOfEntities);
+				long documents = 0;
+				if (entityBits != null) {
+					// jump over the entities that don't get documents
+					for (long id = entityBits.nextIndexable(first); id >= 0 && id <= last;
+							id = entityBits.nextIndexable(id + 1)) {
+						fingerprint ^= indexMolecule(id);
+						documents++;
+					}
+					// the entities added to the pool after the flags were computed are checked one by one
+					for (long id = Math.max(first, entityBits.size()); id <= last; id++) {
+						long update = indexEntity(id);
+						if (update != 0) {
+							fingerprint ^= update;
+							documents++;
+						}
+					}
+				} else {
+					for (long id = first; id <= last; id++) {
+						long update = indexEntity(id);
+						if (update != 0) {
+							fingerprint ^= update;
+							documents++;
+						}
+					}
+				}
+				progress.addDocuments(documents);
+				long count = last - first + 1;
+				long total = progress.addProcessed(count);
+				if (total / 100000 != (total - count) / 100000) {
+					getLogger().info("Indexed " + (total / 100000 * 100000) + " entities");
+				}
+			}
+			return fingerprint;
+		}
+
+		/**
+		 * @return value by which to update the index fingerprint, or 0 if the entity isn't indexed
+		 */
+		private long indexEntity(long id) throws IOException {
+			if (!moleculesModel.getIndexFilter().index(entities.getType(id))) {
+				return 0;
+			}
+
+			// only index base equivalence classes
+			if (entities.getClass(id) != id) {
+				return 0;
+			}
+
+			return indexMolecule(id);
+		}
+
+		/**
+		 * Indexes an entity that has been checked to get a document.
+		 *
+		 * @return value by which to update the index fingerprint
+		 */
+		private long indexMolecule(long id) throws IOException {
+			moleculesModel.getMolecule(id, molecule);
+			// update the fields, the text is streamed into the analyzer from the values of the entities
+			fieldId.setValue(id);
+			fieldText.setValue(molecule);
+			// use scorer (if present) to boost the document weight
+			if (scorer != null) {
+				doc.setBoost((float) scorer.score(id));
+			}
+			// add this molecule to the index
+			writer.addDocument(doc);
+			return id ^ molecule.textHashCode();
+		}
+	}
+
+	/**
+	 * Indexes the entities with several worker threads. The fingerprints of the documents are combined with
+	 * XOR, so the fingerprint of the index doesn't depend on the number of threads or on the order in which
+	 * the documents were added.
+	 */
+	private long indexInParallel(LuceneIndex index, IndexWriter writer, MoleculeModel moleculesModel,
+			Entities entities, long numberOfEntities, int threads, Scorer scorer, IndexingProgress progress)
+			throws IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(threads, daemonThreads("lucene-indexer-"));
+		try {
+			AtomicLong nextId = new AtomicLong(1);
+			List<Future<Long>> workers = new ArrayList<Future<Long>>();
+			for (int i = 0; i < threads; i++) {
+				workers.add(executor.submit(new MoleculeIndexer(index, writer, moleculesModel, entities,
+						numberOfEntities, nextId, scorer, progress)));
+			}
+			long fingerprint = 0;
+			for (Future<Long> worker : workers) {
+				fingerprint ^= worker.get();
+			}
+			return fingerprint;
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Indexing interrupted");
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof IOException) {
+				throw (IOException) ex.getCause();
+			}
+			throw new IOException("Failed indexing molecules", ex.getCause());
 		} finally {
-			// delete redundant directory
-			FileUtils.recursiveDelete(oldIndexDir);
-			FileUtils.recursiveDelete(tempIndexDir);
+			// stops the remaining workers if one of them has failed
+			executor.shutdownNow();
 		}
+	}
 
-		// register new index
-		registerIndex(indexName, index);
+	static ThreadFactory daemonThreads(final String prefix) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
 
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, prefix + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * Creates or updates an index, in the background when requested with the "async" value.
+	 */
+	private boolean buildIndex(String indexName, boolean create, long object, PluginConnection pluginConnection) {
+		String mode = object != 0 ? Utils.getString(pluginConnection.getEntities(), object) : null;
+		if (ASYNC.equalsIgnoreCase(mode)) {
+			return submitJob(indexName, create, pluginConnection);
+		}
+		if (isJobRunning(indexName)) {
+			getLogger().error("A build of " + getIndexDesc(indexName) + " is already running");
+			return false;
+		}
+		return create ? createIndex(indexName, pluginConnection) : updateIndex(indexName, pluginConnection);
+	}
+
+	/**
+	 * Starts building an index with a connection of its own, so that the request that asked for it can
+	 * complete. The queries keep using the current index until the build is done. The parameters are taken
+	 * now, on the requesting thread. A thread-safe connection isn't bound to the request it was obtained in
+	 * and stays valid until it is closed, which the job does when it ends.
+	 */
+	private boolean submitJob(final String indexName, final boolean create, PluginConnection pluginConnection) {
+		if (pluginConnection.getProperties().isReadOnly()) {
+			getLogger().error("Can't build Lucene index when in read-only mode");
+			return false;
+		}
+		final BuildJob job = new BuildJob(indexName, create ? "create" : "update");
+		final BuildSettings settings = new BuildSettings(this);
+		synchronized (jobs) {
+			if (isJobRunning(indexName)) {
+				getLogger().error("A build of " + getIndexDesc(indexName) + " is already running");
+				return false;
+			}
+			jobs.put(indexName, job);
+		}
+		final ThreadsafePluginConnecton connection = pluginConnection.getThreadsafeConnection();
+		try {
+			buildExecutor.submit(new Runnable() {
+				@Override
+				public void run() {
+					boolean succeeded = false;
+					try {
+						succeeded = create ? createIndex(indexName, connection, settings, job.getProgress())
+								: updateIndex(indexName, connection, settings, job.getProgress());
+					} catch (RuntimeException ex) {
+						getLogger().error("Failed building " + getIndexDesc(indexName), ex);
+					} finally {
+						connection.close();
+						job.finish(succeeded);
+					}
+					getLogger().info("The build of " + getIndexDesc(indexName) + " has ended: "
+							+ job.getState().name().toLowerCase());
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			connection.close();
+			job.finish(false);
+			getLogger().error("Failed starting the build of " + getIndexDesc(indexName), ex);
+			return false;
+		}
+		getLogger().info("Started building " + getIndexDesc(indexName) + " in the background");
 		return true;
 	}
 
+	private boolean isJobRunning(String indexName) {
+		BuildJob job = jobs.get(indexName);
+		return job != null && job.isRunning();
+	}
+
 	/**
 	 * (Incrementally) adds to FTS index all entities that have been added since last createIndex()
 	 * 
 	 * Note: store the id of the last indexed entity in a sysdata field named FIELD_LASTINDEXED in the index.
 	 */
 	private boolean updateIndex(String indexName, PluginConnection pluginConnection) {
+		return updateIndex(indexName, pluginConnection, new BuildSettings(this), new IndexingProgress());
+	}
+
+	private boolean updateIndex(String indexName, PluginConnection pluginConnection, BuildSettings settings,
+			IndexingProgress progress) {
 		if (pluginConnection.getProperties().isReadOnly()) {
 			getLogger().error("Can't update Lucene index when in read-only mode");
 			return false;
@@ -563,32 +1061,35 @@ public class LucenePlugin extends PluginBase implements Preprocessor, PluginDepe
 		Document sysdoc;
 		long lastIndexedEntityId;
 		MoleculeModel moleculesModel = new MoleculeModel();
-		IndexSearcher searcher = null;
+		IndexSnapshot snapshot = null;
 		try {
-			index = new LuceneIndex(indexName, indexDir);
-			Query parsedQuery = index.getParser().parse(FIELD_SYSDATA + ":" + FIELD_LASTINDEXED);
-			searcher = index.getSearcher();
+			index = openIndex(indexName, indexDir);
+			Query parsedQuery = index.parse(FIELD_SYSDATA + ":" + FIELD_LASTINDEXED);
+			snapshot = index.acquire();
+			if (snapshot == null) {
+				throw new IOException("The " + getIndexDesc(indexName) + " is not operational");
+			}
+			IndexSearcher searcher = snapshot.getSearcher();
 			TopDocs topDocs = searcher.search(parsedQuery, 2);
 			if (topDocs.totalHits != 1) {
 				getLogger().error(
 						topDocs.totalHits == 0 ? "Missing sysdata in index " + indexName
 								: "Duplicate sysdata in index " + indexName);
-				searcher.close();
-				index.shutDown();
+				releaseIndex(indexName, index);
 				return false;
 			}
 			sysdoc = searcher.doc(topDocs.scoreDocs[0].doc);
 			String lastEntityIdStr = sysdoc.get(FIELD_VALUE);
 			if (lastEntityIdStr == null) {
 				getLogger().error("Missing sysdata.lastindexed in index " + indexName);
-				index.shutDown();
+				releaseIndex(indexName, index);
 				return false;
 			}
 			try {
 				lastIndexedEntityId = Long.valueOf(lastEntityIdStr);
 			} catch (NumberFormatException nfe) {
 				getLogger().error("Non-numeric sysdata.lastindexed value: " + lastEntityIdStr);
-				index.shutDown();
+				releaseIndex(indexName, index);
 				return false;
 			}
 
@@ -597,14 +1098,14 @@ public class LucenePlugin extends PluginBase implements Preprocessor, PluginDepe
 			getLogger().error("Failed to initialize index", ex);
 			try {
 				if (index != null)
-					index.shutDown();
+					releaseIndex(indexName, index);
 			} catch (IOException e) {
 			}
 			return false;
 		} finally { 
 			try {
-			if (searcher != null)
-				searcher.close();
+			if (snapshot != null)
+				index.release(snapshot);
 			} catch (Exception e) {}
 		}
 
@@ -612,23 +1113,13 @@ public class LucenePlugin extends PluginBase implements Preprocessor, PluginDepe
 		if (lastIndexedEntityId >= numberOfEntities) {
 			try {
 				if (index != null)
-					index.shutDown();
+					releaseIndex(indexName, index);
 			} catch (IOException e) {
 			}
 			return false; // no new resource to index
 		}
 
-		try {
-			index.configureAnalyzerFactory(analyzer);
-		} catch (Exception ex) {
-			getLogger().error("Failed to initialize analyzer " + analyzer, ex);
-			try {
-				if (index != null)
-					index.shutDown();
-			} catch (IOException e) {
-			}
-			return false;
-		}
+		// the index keeps the analyzer it was created with, which is loaded with its properties
 
 		IndexWriter writer;
 		try {
@@ -637,7 +1128,7 @@ public class LucenePlugin extends PluginBase implements Preprocessor, PluginDepe
 			getLogger().error("The " + getIndexDesc(indexName) + " is corrupted", e1);
 			try {
 				if (index != null)
-					index.shutDown();
+					releaseIndex(indexName, index);
 			} catch (IOException e) {
 			}
 			return false;
@@ -645,7 +1136,7 @@ public class LucenePlugin extends PluginBase implements Preprocessor, PluginDepe
 			getLogger().error("The " + getIndexDesc(indexName) + " is locked", e1);
 			try {
 				if (index != null)
-					index.shutDown();
+					releaseIndex(indexName, index);
 			} catch (IOException e) {
 			}
 			return false;
@@ -653,7 +1144,7 @@ public class LucenePlugin extends PluginBase implements Preprocessor, PluginDepe
 			getLogger().error("The " + getIndexDesc(indexName) + " is not modifiable", e1);
 			try {
 				if (index != null)
-					index.shutDown();
+					releaseIndex(indexName, index);
 			} catch (IOException e) {
 			}
 			return false;
@@ -664,9 +1155,29 @@ public class LucenePlugin extends PluginBase implements Preprocessor, PluginDepe
 		moleculesModel.setStatements(statements);
 		moleculesModel.setEntities(entities);
 		long fingerprintUpdate = 0;
+		progress.setTotal(numberOfEntities - lastIndexedEntityId);
 		for (long id = lastIndexedEntityId + 1; id <= numberOfEntities; id++) {
+			if (progress.isCancelled()) {
+				getLogger().info("Cancelled updating " + getIndexDesc(indexName));
+				try {
+					// drops the documents added so far, the index stays as it was
+					writer.rollback();
+				} catch (IOException iox) {
+					getLogger().error("Failed rolling back " + getIndexDesc(indexName), iox);
+				}
+				try {
+					releaseIndex(indexName, index);
+				} catch (IOException e) {
+				}
+				return false;
+			}
 			try {
-				fingerprintUpdate ^= addToIndex(index, writer, moleculesModel, id, entities);
+				long update = addToIndex(index, writer, moleculesModel, id, entities, settings.scorer);
+				if (update != 0) {
+					fingerprintUpdate ^= update;
+					progress.addDocuments(1);
+				}
+				progress.addProcessed(1);
 			} catch (IOException e) {
 				getLogger().error("Failed writing to " + getIndexDesc(indexName));
 				try {
@@ -676,7 +1187,7 @@ public class LucenePlugin extends PluginBase implements Preprocessor, PluginDepe
 				}
 				try {
 					if (index != null)
-						index.shutDown();
+						releaseIndex(indexName, index);
 				} catch (IOException e1) {
 				}
 				return false;
@@ -698,7 +1209,7 @@ public class LucenePlugin extends PluginBase implements Preprocessor, PluginDepe
 			}
 			try {
 				if (index != null)
-					index.shutDown();
+					releaseIndex(indexName, index);
 			} catch (IOException e1) {
 			}
 			return false;
@@ -711,7 +1222,7 @@ public class LucenePlugin extends PluginBase implements Preprocessor, PluginDepe
 			getLogger().error("Failed committing for " + getIndexDesc(indexName), iox);
 			try {
 				if (index != null)
-					index.shutDown();
+					releaseIndex(indexName, index);
 			} catch (IOException e) {
 			}
 			return false;
@@ -732,7 +1243,7 @@ public class LucenePlugin extends PluginBase implements Preprocessor, PluginDepe
 			getLogger().error("The newly produced index is not usable", iox);
 			try {
 				if (index != null)
-					index.shutDown();
+					releaseIndex(indexName, index);
 			} catch (IOException e) {
 			}
 			return false;
@@ -745,10 +1256,10 @@ public class LucenePlugin extends PluginBase implements Preprocessor, PluginDepe
 	}
 
 	/**
-	 * (Incrementally) index/add a single entity to an existing index. This is the short version (by indexName
-	 * only). See next method for the long version.
+	 * (Incrementally) index/add entities to an existing index, all with the same index writer and a single
+	 * commit. This is the short version (by indexName only). See next method for the long version.
 	 */
-	private boolean addToIndex(String indexName, long id, PluginConnection pluginConnection) {
+	private boolean addToIndex(String indexName, long[] ids, PluginConnection pluginConnection) {
 
 		if (pluginConnection.getProperties().isReadOnly()) {
 			getLogger().error("Can't update Lucene index when in read-only mode");
@@ -761,6 +1272,11 @@ public class LucenePlugin extends PluginBase implements Preprocessor, PluginDepe
 			return false;
 		}
 
+		if (isJobRunning(indexName)) {
+			getLogger().error("Can't add to " + getIndexDesc(indexName) + " while it is being built");
+			return false;
+		}
+
 		File indexDir = new File(getDataDir() + File.separator + indexName);
 		if (!indexDir.exists()) {
 			getLogger().error("Non existing index directory: " + indexDir.getAbsolutePath());
@@ -769,7 +1285,7 @@ public class LucenePlugin extends PluginBase implements Preprocessor, PluginDepe
 
 		LuceneIndex index;
 		try {
-			index = new LuceneIndex(indexName, indexDir);
+			index = openIndex(indexName, indexDir);
 		} catch (Exception ex) {
 			getLogger().error("Failed to initialize index", ex);
 			return false;
@@ -780,7 +1296,7 @@ public class LucenePlugin extends PluginBase implements Preprocessor, PluginDepe
 
 		MoleculeModel moleculesModel = new MoleculeModel();
 		try {
-			index.configureAnalyzerFactory(analyzer);
+			// the analyzer is the one the index was created with, the registered index keeps serving queries
 			loadMoleculeFromIndex(moleculesModel, index);
 			moleculesModel.setStatements(statements);
 			moleculesModel.setEntities(entities);
@@ -806,7 +1322,9 @@ public class LucenePlugin extends PluginBase implements Preprocessor, PluginDepe
 
 		long fingerprintUpdate = 0;
 		try {
-			fingerprintUpdate ^= addToIndex(index, writer, moleculesModel, id, entities);
+			for (long id : ids) {
+				fingerprintUpdate ^= addToIndex(index, writer, moleculesModel, id, entities, scorer);
+			}
 			writer.commit();
 		} catch (IOException iox) {
 			getLogger().error("Failed addToIndex for " + indexDesc, iox);
@@ -849,7 +1367,22 @@ public class LucenePlugin extends PluginBase implements Preprocessor, PluginDepe
 	 * @return value by which to update the index fingerprint, or 0 if not changed.
 	 */
 	private long addToIndex(LuceneIndex index, IndexWriter writer, MoleculeModel moleculesModel, long id,
-			Entities entities) throws IOException {
+			Entities entities, Scorer scorer) throws IOException {
+		return addToIndex(index, writer, moleculesModel, id, entities, scorer, false);
+	}
+
+	/**
+	 * Indexes a single entity, optionally replacing its current document.
+	 *
+	 * The document of the entity is replaced in indices whose entity ids are indexed, older indices get a
+	 * new document.
+	 *
+	 * @param scorer boosts the document, may be null
+	 * @param replace whether to delete the document of the entity if the entity no longer gets one
+	 * @return value by which to update the index fingerprint, or 0 if not changed.
+	 */
+	private long addToIndex(LuceneIndex index, IndexWriter writer, MoleculeModel moleculesModel, long id,
+			Entities entities, Scorer scorer, boolean replace) throws IOException {
 		assert (index != null);
 		assert (writer != null);
 		assert (moleculesModel != null);
@@ -858,72 +1391,203 @@ public class LucenePlugin extends PluginBase implements Preprocessor, PluginDepe
 		// moleculesModel.initialize();
 		// but we don't do it here, since we do not build a molecule graph.
 
-		Field fieldId = new Field(FIELD_ID, "", Store.YES, Index.NO);
-		Field fieldText = new Field(FIELD_TEXT, "", Store.NO, Index.ANALYZED);
+		EntityIdField fieldId = index.newIdField();
+		MoleculeText molecule = new MoleculeText();
+		Field fieldText = new Field(FIELD_TEXT, molecule);
 
 		Document doc = new Document();
 
-		doc.add(fieldId);
+		doc.add(fieldId.getField());
 		doc.add(fieldText);
 
-		getLogger().info("Add to index entity #" + id + " ...");
-
-		Entities.Type type = entities.getType(id);
-		switch (type) {
-		case URI:
-			if (!moleculesModel.getIndexFilter().indexURI()) {
-				return 0;
-			}
-			break;
-		case BNODE:
-			if (!moleculesModel.getIndexFilter().indexBNode()) {
-				return 0;
-			}
-			break;
-		case LITERAL:
-			if (!moleculesModel.getIndexFilter().indexLiteral()) {
-				return 0;
-			}
-			break;
+		if (!replace) {
+			getLogger().info("Add to index entity #" + id + " ...");
 		}
+		Term idTerm = index.idTerm(id);
 
-		// only index base equivalence classes
-		if (entities.getClass(id) != id) {
-			return 0;
-		}
+		boolean indexed = moleculesModel.getIndexFilter().index(entities.getType(id))
+				// only index base equivalence classes
+				&& entities.getClass(id) == id;
 
-		String molecule = moleculesModel.getMoleculeWoGraph(id);
-		if (molecule != null) {
+		if (indexed && moleculesModel.getMoleculeWoGraph(id, molecule)) {
 			// update the fields
-			fieldId.setValue(Long.toString(id));
+			fieldId.setValue(id);
 			fieldText.setValue(molecule);
 			// use scorer (if present) to boost the document weight
 			if (scorer != null) {
 				doc.setBoost((float) scorer.score(id));
 			}
-			// add this molecule to the index
-			writer.addDocument(doc);
+			// add this molecule to the index, replacing the document the entity may already have
+			if (index.isIdIndexed()) {
+				writer.updateDocument(idTerm, doc);
+			} else {
+				writer.addDocument(doc);
+			}
 
-			return id ^ molecule.hashCode(); // fingeprint update
+			return id ^ molecule.textHashCode(); // fingeprint update
 		}
 
+		if (replace) {
+			// the entity no longer gets a document
+			writer.deleteDocuments(idTerm);
+		}
 		return 0;
 	}
 
-	private void dropIndex(String indexName) {
+	/**
+	 * Reindexes the molecules affected by the statements added or removed in the transaction that has just
+	 * completed, in all indices that track changes. Entities above the last indexed one are left for
+	 * updateIndex.
+	 */
+	private void reindexChanges(PluginConnection pluginConnection) {
+		if (pluginConnection.getProperties().isReadOnly()) {
+			return;
+		}
+		deferChanges();
+		for (Map.Entry<String, TrackedChanges> entry : changes.entrySet()) {
+			String indexName = entry.getKey();
+			LuceneIndex index = indices.get(indexName);
+			TrackedChanges tracked = entry.getValue();
+			if (index == null || tracked.moleculesModel == null || tracked.subjects.isEmpty()) {
+				continue;
+			}
+			if (tracked.overflow) {
+				getLogger().warn("Too many changes to reindex in " + getIndexDesc(indexName)
+						+ ", recreate it with luc:createIndex or add the new entities with luc:updateIndex");
+			} else {
+				reindexChanges(indexName, index, tracked, pluginConnection);
+			}
+		}
+	}
+
+	private boolean reindexChanges(String indexName, LuceneIndex index, TrackedChanges tracked,
+			PluginConnection pluginConnection) {
+		String indexDesc = getIndexDesc(indexName);
+		if (!index.isIdIndexed()) {
+			// the documents of older indices can't be replaced by entity id
+			getLogger().warn("Can't track changes in " + indexDesc + ", it must be recreated first");
+			return false;
+		}
+
+		Entities entities = pluginConnection.getEntities();
+		MoleculeModel moleculesModel = tracked.moleculesModel;
+		long lastIndexedEntityId;
+		try {
+			lastIndexedEntityId = loadLastIndexedFromIndex(index);
+		} catch (Exception ex) {
+			getLogger().error("Failed to initialize " + indexDesc, ex);
+			return false;
+		}
+		moleculesModel.setStatements(pluginConnection.getStatements());
+		moleculesModel.setEntities(entities);
+
+		TLongHashSet centres = new TLongHashSet();
+		for (TLongIterator it = tracked.subjects.iterator(); it.hasNext();) {
+			moleculesModel.addAffectedCentres(it.next(), centres);
+			if (centres.size() > MAX_TRACKED_CHANGES) {
+				getLogger().warn("The changes affect too many molecules to reindex in " + indexDesc
+						+ ", recreate it with luc:createIndex");
+				return false;
+			}
+		}
+		long[] ids = centres.toArray();
+		Arrays.sort(ids);
+		int count = 0;
+		while (count < ids.length && ids[count] <= lastIndexedEntityId) {
+			count++;
+		}
+		if (count == 0) {
+			return true;
+		}
+		getLogger().info("Reindexing " + count + " molecules affected by the changes in " + indexDesc);
+
+		IndexWriter writer;
+		try {
+			writer = index.getWriter();
+		} catch (CorruptIndexException e) {
+			getLogger().error("The " + indexDesc + " is corrupted", e);
+			return false;
+		} catch (LockObtainFailedException e) {
+			getLogger().error("The " + indexDesc + " is locked", e);
+			return false;
+		} catch (IOException e) {
+			getLogger().error("The " + indexDesc + " is not modifiable", e);
+			return false;
+		}
+
+		// the fingerprint can't take out the previous documents, so it records the replacements instead
+		long fingerprintUpdate = 0;
+		try {
+			for (int idx = 0; idx < count; idx++) {
+				fingerprintUpdate ^= addToIndex(index, writer, moleculesModel, ids[idx], entities, scorer, true);
+			}
+			writer.commit();
+		} catch (IOException iox) {
+			getLogger().error("Failed reindexing changes in " + indexDesc, iox);
+			return false;
+		} finally {
+			try {
+				writer.close();
+			} catch (IOException iox) {
+				getLogger().error("Failed closing " + indexDesc, iox);
+			}
+		}
+
+		try {
+			index.refresh();
+		} catch (IOException iox) {
+			getLogger().error("The updated " + indexDesc + " is not usable", iox);
+			return false;
+		}
+
+		index.setFingerprint(index.getFingerprint() ^ fingerprintUpdate);
+		return true;
+	}
+
+	/**
+	 * Returns the registered instance of an index so that refreshing it after an update reopens only the
+	 * changed segments, or opens the index if it isn't registered.
+	 */
+	private LuceneIndex openIndex(String indexName, File indexDir) throws IOException {
 		LuceneIndex index = indices.get(indexName);
-		if (index != null) {
+		if (index != null && index.isOperational()) {
+			return index;
+		}
+		return new LuceneIndex(indexName, LuceneIndex.findDataDir(indexDir));
+	}
+
+	/**
+	 * Shuts down an index obtained from {@link #openIndex(String, File)} unless it's the registered instance,
+	 * which remains in use.
+	 */
+	private void releaseIndex(String indexName, LuceneIndex index) throws IOException {
+		if (indices.get(indexName) != index) {
+			index.shutDown();
+		}
+	}
+
+	/**
+	 * Registers a new build of an index in place of the previous one. New queries get the new build at once
+	 * and the previous one is deleted when the queries that still use it are done.
+	 */
+	private void replaceIndex(String indexName, LuceneIndex index) {
+		index.setSearchExecutor(searchExecutor);
+		LuceneIndex old = indices.put(indexName, index);
+		if (old != null && old != index) {
 			try {
-				index.shutDown();
+				old.retire();
 			} catch (IOException e) {
-				getLogger().error("Failed to shutdown Lucene " + getIndexDesc(indexName), e);
+				getLogger().error("Failed to shutdown the previous Lucene " + getIndexDesc(indexName), e);
 			}
-			indices.remove(indexName);
+		} else {
+			// the files of a previous build that failed to open
+			LuceneIndex.deleteStaleDataDirs(new File(getDataDir() + File.separator + indexName));
 		}
 	}
 
 	private void registerIndex(String indexName, LuceneIndex index) {
 		if (index.isOperational()) {
+			index.setSearchExecutor(searchExecutor);
 			LuceneIndex old = indices.put(indexName, index);
 			if (old != null && !old.equals(index)) {
 				try {
@@ -950,8 +1614,8 @@ public class LucenePlugin extends PluginBase implements Preprocessor, PluginDepe
 	@Override
 	public long getFingerprint() {
 		long result = 0;
-		for (String name : indices.keySet()) {
-			result ^= name.hashCode() + indices.get(name).getFingerprint();
+		for (Map.Entry<String, LuceneIndex> entry : indices.entrySet()) {
+			result ^= entry.getKey().hashCode() + entry.getValue().getFingerprint();
 		}
 		return result;
 	}
@@ -960,6 +1624,17 @@ public class LucenePlugin extends PluginBase implements Preprocessor, PluginDepe
 		return indexName.length() > 0 ? "'" + indexName + "' index" : "default index";
 	}
 
+	/**
+	 * Parses the value of a limit parameter, 0 meaning no limit.
+	 */
+	private static int parseLimit(String value) {
+		int limit = Integer.parseInt(value.trim());
+		if (limit < 0) {
+			throw new IllegalArgumentException("Negative limit " + limit);
+		}
+		return limit;
+	}
+
 	private Set<IRI> parseURIList(String value) {
 		Set<IRI> result = null;
 		try {
@@ -971,40 +1646,90 @@ public class LucenePlugin extends PluginBase implements Preprocessor, PluginDepe
 		return result;
 	}
 
+	private RequestScores getScores(RequestContext requestContext) {
+		RequestScores scores = (RequestScores) ((RequestContextImpl) requestContext).getAttribute(ATTRIBUTE_SCORES);
+		if (scores == null) {
+			scores = new RequestScores();
+			((RequestContextImpl) requestContext).setAttribute(ATTRIBUTE_SCORES, scores);
+		}
+		return scores;
+	}
+
 	@SuppressWarnings("unchecked")
-	private List<LuceneIterator> getActiveIterators(RequestContext requestContext) {
-		List<LuceneIterator> iters = (List<LuceneIterator>) ((RequestContextImpl) requestContext)
-				.getAttribute(ATTRIBUTE_ITERATORS);
-		if (iters == null) {
-			iters = new LinkedList<LuceneIterator>();
-			((RequestContextImpl) requestContext).setAttribute(ATTRIBUTE_ITERATORS, iters);
-		}
-		return iters;
+	private Map<String, Integer> getLimits(RequestContext requestContext) {
+		Map<String, Integer> limits = (Map<String, Integer>) ((RequestContextImpl) requestContext)
+				.getAttribute(ATTRIBUTE_LIMITS);
+		if (limits == null) {
+			limits = new HashMap<String, Integer>();
+			((RequestContextImpl) requestContext).setAttribute(ATTRIBUTE_LIMITS, limits);
+		}
+		return limits;
+	}
+
+	/**
+	 * Records a per-request limit for the queries against an index, e.g. <code>luc:myIndex luc:limit "20"</code>.
+	 * The limit is only a hint: it is applied when it has been evaluated before the query pattern itself.
+	 */
+	private boolean setLimit(RequestContext requestContext, String indexName, String value) {
+		if (requestContext == null) {
+			getLogger().error(Lucene.LIMIT + " can be used only in queries");
+			return false;
+		}
+		int limit;
+		try {
+			limit = Integer.parseInt(value.trim());
+		} catch (Exception ex) {
+			getLogger().error("Bad value '" + value + "' passed to " + Lucene.LIMIT);
+			return false;
+		}
+		if (limit < 0) {
+			getLogger().error("Bad value '" + value + "' passed to " + Lucene.LIMIT);
+			return false;
+		}
+		getLimits(requestContext).put(indexName, limit);
+		return true;
 	}
 
-	private void addIterator(RequestContext requestContext, LuceneIterator iterator) {
-		getActiveIterators(requestContext).add(iterator);
+	private int getLimit(RequestContext requestContext, String indexName) {
+		if (requestContext == null) {
+			return 0;
+		}
+		Integer limit = getLimits(requestContext).get(indexName);
+		return limit != null ? limit : 0;
 	}
 
 	protected float getScore(RequestContext requestContext, long subject) {
-		Iterator<LuceneIterator> iters = getActiveIterators(requestContext).iterator();
-		while (iters.hasNext()) {
-			LuceneIterator curr = iters.next();
-			if (curr.isClosed()) {
-				iters.remove();
-			} else {
-				if (curr.subject == subject) {
-					return curr.score;
-				}
-			}
-		}
-		return 0;
+		return getScores(requestContext).get(subject);
+	}
+
+	/**
+	 * Returns the id of a literal with the score of an entity, reusing the literals of identical scores.
+	 */
+	protected long getScoreLiteral(RequestContext requestContext, long subject, Entities entities) {
+		RequestScores scores = getScores(requestContext);
+		return scores.getLiteral(scores.get(subject), entities);
 	}
 
 	@Override
 	public void shutdown(ShutdownReason shutdownReason) {
-		for (String indexName : indices.keySet()) {
-			LuceneIndex index = indices.get(indexName);
+		if (buildExecutor != null) {
+			// the builds stop at the next chunk of entities, before the indices are shut down
+			for (BuildJob job : jobs.values()) {
+				job.cancel();
+			}
+			buildExecutor.shutdown();
+			try {
+				if (!buildExecutor.awaitTermination(BUILD_SHUTDOWN_TIMEOUT, TimeUnit.SECONDS)) {
+					getLogger().warn("Lucene index builds still running on shutdown");
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			buildExecutor = null;
+		}
+		for (Map.Entry<String, LuceneIndex> entry : indices.entrySet()) {
+			String indexName = entry.getKey();
+			LuceneIndex index = entry.getValue();
 			getLogger().info("Shutting down " + getIndexDesc(indexName));
 			try {
 				index.shutDown();
@@ -1012,6 +1737,10 @@ public class LucenePlugin extends PluginBase implements Preprocessor, PluginDepe
 				getLogger().error("Failed shutting down Lucene " + getIndexDesc(indexName), e);
 			}
 		}
+		if (searchExecutor != null) {
+			searchExecutor.shutdownNow();
+			searchExecutor = null;
+		}
 	}
 
 	@Override
@@ -1022,13 +1751,35 @@ public class LucenePlugin extends PluginBase implements Preprocessor, PluginDepe
 	@Override
 	public double estimate(long subject, long predicate, long object, long context, PluginConnection pluginConnection,
 						   RequestContext requestContext) {
-		if (Utils.match(predicate, idSetParam, idCreateIndex, idScore)) {
+		if (Utils.match(predicate, idSetParam, idCreateIndex, idScore, idLimit, idStats)) {
 			return 1;
 		}
-		if (subject == Entities.BOUND) { // We don't prefer orderings where the Lucene triple pattern does not bind the variable because it becomes a filter and is calculated extremely slowly.
-			return 1000000;
+		if (subject == Entities.BOUND) {
+			// With the id indexed a bound subject is a direct lookup, i.e. a cheap filter. Otherwise we don't
+			// prefer orderings where the Lucene triple pattern does not bind the variable because it becomes a
+			// filter and is calculated extremely slowly.
+			String suffix = Utils.matchPrefix(Utils.getString(pluginConnection.getEntities(), predicate),
+					Lucene.NAMESPACE, Lucene.OLD_QUERY);
+			LuceneIndex index = suffix != null ? indices.get(suffix) : null;
+			return index != null && index.isIdIndexed() ? 1 : 1000000;
 		}
-		return 1000; // TODO: get a better estimate from the index
+		if (object != 0 && object != Entities.BOUND) {
+			// the query is known so ask the index how many hits it has
+			String suffix = Utils.matchPrefix(Utils.getString(pluginConnection.getEntities(), predicate),
+					Lucene.NAMESPACE, Lucene.OLD_QUERY);
+			LuceneIndex index = suffix != null ? indices.get(suffix) : null;
+			if (index != null) {
+				try {
+					long hits = index.estimateHits(pluginConnection.getEntities().get(object).stringValue());
+					if (hits >= 0) {
+						return Math.max(hits, 1);
+					}
+				} catch (Exception e) {
+					getLogger().debug("Failed estimating lucene query on " + getIndexDesc(suffix), e);
+				}
+			}
+		}
+		return 1000;
 	}
 
 	/**
@@ -1052,21 +1803,63 @@ public class LucenePlugin extends PluginBase implements Preprocessor, PluginDepe
 		writer.addDocument(doc);
 	}
 
+	/**
+	 * Loads the id of the last indexed entity stored by storeLastIndexedToIndex.
+	 */
+	private long loadLastIndexedFromIndex(LuceneIndex index) throws ParseException, IOException {
+		Query parsedQuery = index.parse(FIELD_SYSDATA + ":" + FIELD_LASTINDEXED);
+		IndexSnapshot snapshot = index.acquire();
+		if (snapshot == null) {
+			throw new IOException("Index " + index.getName() + " is not operational");
+		}
+		Document sysdoc;
+		try {
+			IndexSearcher searcher = snapshot.getSearcher();
+			TopDocs topDocs = searcher.search(parsedQuery, 2);
+			if (topDocs.totalHits != 1) {
+				String msg = (topDocs.totalHits == 0 ? "Missing sysdata in index " + index.getName()
+						: "Duplicate sysdata in index " + index.getName());
+				throw new IOException(msg);
+			}
+			sysdoc = searcher.doc(topDocs.scoreDocs[0].doc);
+		} finally {
+			index.release(snapshot);
+		}
+		String lastEntityIdStr = sysdoc.get(FIELD_VALUE);
+		if (lastEntityIdStr == null) {
+			throw new IOException("Missing sysdata.lastindexed in index " + index.getName());
+		}
+		try {
+			return Long.parseLong(lastEntityIdStr);
+		} catch (NumberFormatException nfe) {
+			throw new IOException("Non-numeric sysdata.lastindexed value: " + lastEntityIdStr);
+		}
+	}
+
 	/**
 	 * Loads molecule parameters from the index. The params must have been previously stored by
 	 * storeMoleculeToIndex.
 	 */
 	private void loadMoleculeFromIndex(MoleculeModel molecule, LuceneIndex index) throws ParseException,
 			IOException {
-		Query parsedQuery = index.getParser().parse(FIELD_SYSDATA + ":" + FIELD_MOLECULE);
-		IndexSearcher searcher = index.getSearcher();
-		TopDocs topDocs = searcher.search(parsedQuery, 2);
-		if (topDocs.totalHits != 1) {
-			String msg = (topDocs.totalHits == 0 ? "Missing sysdata in index " + index.getName()
-					: "Duplicate sysdata in index " + index.getName());
-			throw new IOException(msg);
-		}
-		Document sysdoc = searcher.doc(topDocs.scoreDocs[0].doc);
+		Query parsedQuery = index.parse(FIELD_SYSDATA + ":" + FIELD_MOLECULE);
+		IndexSnapshot snapshot = index.acquire();
+		if (snapshot == null) {
+			throw new IOException("Index " + index.getName() + " is not operational");
+		}
+		Document sysdoc;
+		try {
+			IndexSearcher searcher = snapshot.getSearcher();
+			TopDocs topDocs = searcher.search(parsedQuery, 2);
+			if (topDocs.totalHits != 1) {
+				String msg = (topDocs.totalHits == 0 ? "Missing sysdata in index " + index.getName()
+						: "Duplicate sysdata in index " + index.getName());
+				throw new IOException(msg);
+			}
+			sysdoc = searcher.doc(topDocs.scoreDocs[0].doc);
+		} finally {
+			index.release(snapshot);
+		}
 		String moleculeStr = sysdoc.get(FIELD_VALUE);
 		if (moleculeStr == null) {
 			throw new IOException("Missing sysdata.molecule in index " + index.getName());
@@ -1082,16 +1875,238 @@ public class LucenePlugin extends PluginBase implements Preprocessor, PluginDepe
 
 	@Override
 	public long[] getPredicatesToListenFor() {
-		return new long[] { idAddToIndex, idCreateIndex, idSetParam, idUpdateIndex };
+		return new long[] { idAddToIndex, idCreateIndex, idSetParam, idUpdateIndex, idCancelJob };
 	}
 
 	@Override
 	public boolean interpretUpdate(long subject, long predicate, long object, long context, boolean isAddition,
 			boolean isExplicit, PluginConnection pluginConnection) {
+		if (predicate == idAddToIndex) {
+			// postponed until the transaction commits so that all entities are added with a single commit
+			String indexName = Utils.matchPrefix(Utils.getString(pluginConnection.getEntities(), subject),
+					Lucene.NAMESPACE);
+			if (indexName == null) {
+				throw new PluginException("Invalid index " + Utils.getString(pluginConnection.getEntities(), subject)
+						+ " passed to " + Lucene.ADD_TO_INDEX);
+			}
+			synchronized (pendingAdditions) {
+				Map<String, TLongHashSet> additions = pendingAdditions.get(pluginConnection.getTransactionId());
+				if (additions == null) {
+					additions = new LinkedHashMap<String, TLongHashSet>();
+					pendingAdditions.put(pluginConnection.getTransactionId(), additions);
+				}
+				TLongHashSet ids = additions.get(indexName);
+				if (ids == null) {
+					ids = new TLongHashSet();
+					additions.put(indexName, ids);
+				}
+				ids.add(object);
+			}
+			return true;
+		}
+		// keep the order of the requests, e.g. a new index must not get the entities added to the old one
+		applyPendingAdditions(pluginConnection);
 		interpret(subject, predicate, object, context, pluginConnection, null);
 		return true;
 	}
 
+	/**
+	 * Adds the entities passed to addToIndex by the transaction of a connection to their indices.
+	 *
+	 * @throws PluginException if an index fails to add them, which fails the transaction
+	 */
+	private void applyPendingAdditions(PluginConnection pluginConnection) {
+		Map<String, TLongHashSet> additions = clearPendingAdditions(pluginConnection);
+		if (additions == null) {
+			return;
+		}
+		for (Map.Entry<String, TLongHashSet> entry : additions.entrySet()) {
+			// each entity once, in the order of the ids
+			long[] ids = entry.getValue().toArray();
+			Arrays.sort(ids);
+			if (!addToIndex(entry.getKey(), ids, pluginConnection)) {
+				throw new PluginException("Failed adding " + ids.length + " entities to "
+						+ getIndexDesc(entry.getKey()));
+			}
+		}
+	}
+
+	/**
+	 * @return the entities passed to addToIndex by the transaction of a connection or null if there are none
+	 */
+	private Map<String, TLongHashSet> clearPendingAdditions(PluginConnection pluginConnection) {
+		synchronized (pendingAdditions) {
+			return pendingAdditions.remove(pluginConnection.getTransactionId());
+		}
+	}
+
+	@Override
+	public boolean statementAdded(long subject, long predicate, long object, long context, boolean isExplicit,
+			PluginConnection pluginConnection) {
+		recordChange(subject, predicate, object, pluginConnection);
+		return false;
+	}
+
+	@Override
+	public boolean statementRemoved(long subject, long predicate, long object, long context, boolean isExplicit,
+			PluginConnection pluginConnection) {
+		recordChange(subject, predicate, object, pluginConnection);
+		return false;
+	}
+
+	/**
+	 * The subjects of the statements changed by a transaction that are relevant to the molecules of an
+	 * index, with the molecule model of the index loaded on the first change.
+	 */
+	private static class TrackedChanges {
+		// null if the model couldn't be loaded
+		final MoleculeModel moleculesModel;
+		TLongHashSet subjects = new TLongHashSet();
+		// set when there are more than MAX_TRACKED_CHANGES subjects, which are dropped
+		boolean overflow;
+
+		TrackedChanges(MoleculeModel moleculesModel) {
+			this.moleculesModel = moleculesModel;
+		}
+
+		void add(long subject) {
+			if (!overflow && subjects.add(subject) && subjects.size() > MAX_TRACKED_CHANGES) {
+				overflow = true;
+				subjects = new TLongHashSet();
+			}
+		}
+
+		void addAll(TrackedChanges other) {
+			if (other.overflow) {
+				overflow = true;
+				subjects = new TLongHashSet();
+			}
+			for (TLongIterator it = other.subjects.iterator(); it.hasNext();) {
+				add(it.next());
+			}
+		}
+	}
+
+	private void recordChange(long subject, long predicate, long object, PluginConnection pluginConnection) {
+		if (!trackingChanges) {
+			return;
+		}
+		for (Map.Entry<String, LuceneIndex> entry : indices.entrySet()) {
+			if (!entry.getValue().isTrackChanges()) {
+				continue;
+			}
+			TrackedChanges tracked = changes.get(entry.getKey());
+			if (tracked == null) {
+				tracked = new TrackedChanges(loadTrackingModel(entry.getKey(), entry.getValue(), pluginConnection));
+				changes.put(entry.getKey(), tracked);
+			}
+			if (tracked.moleculesModel == null || tracked.overflow) {
+				continue;
+			}
+			// a build may change the molecules of the index, so all changes are kept while it runs
+			if (isJobRunning(entry.getKey()) || tracked.moleculesModel.isRelevant(subject, predicate, object)) {
+				tracked.add(subject);
+			}
+		}
+	}
+
+	private MoleculeModel loadTrackingModel(String indexName, LuceneIndex index, PluginConnection pluginConnection) {
+		MoleculeModel moleculesModel = new MoleculeModel();
+		try {
+			loadMoleculeFromIndex(moleculesModel, index);
+		} catch (Exception ex) {
+			getLogger().error("Failed to initialize " + getIndexDesc(indexName), ex);
+			return null;
+		}
+		moleculesModel.setEntities(pluginConnection.getEntities());
+		return moleculesModel;
+	}
+
+	private void clearChanges() {
+		changes.clear();
+	}
+
+	/**
+	 * Keeps the changes to indices that are being built for after the build, when the new build has
+	 * replaced the index, and takes back those whose build is over.
+	 */
+	private void deferChanges() {
+		for (Iterator<Map.Entry<String, TrackedChanges>> it = changes.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String, TrackedChanges> entry = it.next();
+			if (isJobRunning(entry.getKey())) {
+				TrackedChanges deferred = deferredChanges.get(entry.getKey());
+				if (deferred == null) {
+					deferred = new TrackedChanges(null);
+					deferredChanges.put(entry.getKey(), deferred);
+				}
+				deferred.addAll(entry.getValue());
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Adds the changes deferred while indices were being built to those of the current transaction once the
+	 * builds are over, with the molecule models of the indices that have replaced them.
+	 */
+	private void resumeDeferredChanges(PluginConnection pluginConnection) {
+		for (Iterator<Map.Entry<String, TrackedChanges>> it = deferredChanges.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String, TrackedChanges> entry = it.next();
+			String indexName = entry.getKey();
+			if (isJobRunning(indexName)) {
+				continue;
+			}
+			it.remove();
+			LuceneIndex index = indices.get(indexName);
+			if (index == null || !index.isTrackChanges()) {
+				continue;
+			}
+			TrackedChanges tracked = changes.get(indexName);
+			if (tracked == null) {
+				tracked = new TrackedChanges(loadTrackingModel(indexName, index, pluginConnection));
+				changes.put(indexName, tracked);
+			}
+			getLogger().info("Reindexing the changes made while " + getIndexDesc(indexName) + " was being built");
+			tracked.addAll(entry.getValue());
+		}
+	}
+
+	@Override
+	public void transactionStarted(PluginConnection pluginConnection) {
+		clearPendingAdditions(pluginConnection);
+		clearChanges();
+		trackingChanges = false;
+		for (LuceneIndex index : indices.values()) {
+			trackingChanges |= index.isTrackChanges();
+		}
+	}
+
+	@Override
+	public void transactionCommit(PluginConnection pluginConnection) {
+		// still able to fail the transaction
+		applyPendingAdditions(pluginConnection);
+	}
+
+	@Override
+	public void transactionCompleted(PluginConnection pluginConnection) {
+		try {
+			if (!deferredChanges.isEmpty()) {
+				resumeDeferredChanges(pluginConnection);
+			}
+			if (!changes.isEmpty()) {
+				reindexChanges(pluginConnection);
+			}
+		} finally {
+			clearChanges();
+		}
+	}
+
+	@Override
+	public void transactionAborted(PluginConnection pluginConnection) {
+		clearPendingAdditions(pluginConnection);
+		clearChanges();
+	}
+
 	private void printDeprecationWarning() {
 		getLogger().warn("The Lucene FTS plugin has been deprecated in favour of new functionality in the Connectors.");
 	}
@@ -1,42 +1,98 @@
 package com.ontotext.trree.plugin.lucene;
 
-import org.apache.lucene.document.Document;
-import org.apache.lucene.document.FieldSelector;
-import org.apache.lucene.document.Fieldable;
-import org.apache.lucene.document.MapFieldSelector;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.search.Collector;
-import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.Scorer;
 
 import java.io.IOException;
-import java.util.Comparator;
-import java.util.PriorityQueue;
 
+/**
+ * Collects the hits of a query into two parallel primitive arrays, the entity ids and the scores, so that no
+ * objects are allocated per hit. With a limit the arrays form an in-place binary heap ordered worst-first so
+ * that the weakest hit can be evicted in O(log limit); without one hits are appended and sorted at the end.
+ * The arrays are scratch buffers reused by the following queries of the same thread; only the final, exactly
+ * sized {@link HitList} is allocated per query.
+ */
 public class LuceneResultsCollector extends Collector {
-	private IndexReader reader;
-	private Scorer scorer;
+	// larger buffers are not kept for reuse so that a single huge query doesn't pin its memory
+	private static final int MAX_RETAINED = 1 << 20;
+	private static final int INITIAL_CAPACITY = 128;
 
-	private PriorityQueue<ScoreDoc> hits = new PriorityQueue<ScoreDoc>(100, compare);
-	private ScoreDoc[] results;
-	private int[] docToURI;
-	private int docBase;
-
-	private static final FieldSelector select = new MapFieldSelector(LucenePlugin.FIELD_ID);
+	private static class Scratch {
+		int[] ids = new int[INITIAL_CAPACITY];
+		float[] scores = new float[INITIAL_CAPACITY];
+		boolean inUse;
+	}
 
-	private static final Comparator<ScoreDoc> compare = new Comparator<ScoreDoc>() {
+	private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
 		@Override
-		public int compare(ScoreDoc h1, ScoreDoc h2) {
-			int cmp = Float.compare(h2.score, h1.score);
-			if (cmp != 0) {
-				return cmp;
-			}
-			return h1.doc - h2.doc;
+		protected Scratch initialValue() {
+			return new Scratch();
 		}
 	};
 
-	public LuceneResultsCollector(int[] docToURI) {
-		this.docToURI = docToURI;
+	private IndexReader reader;
+	private Scorer scorer;
+
+	private final int limit;
+	private final boolean hasAfter;
+	private final float afterScore;
+	private final int afterId;
+	private HitList results;
+	private final EntityIds entityIds;
+	private EntityIds.Segment segmentIds;
+
+	// the hits, a heap in the bounded mode
+	private Scratch buffers;
+	private int[] ids;
+	private float[] scores;
+	private int size;
+
+	public LuceneResultsCollector(EntityIds entityIds) {
+		this(entityIds, 0);
+	}
+
+	/**
+	 * Creates a collector that keeps only the best <code>limit</code> hits. A limit of 0 (or less) collects
+	 * all hits.
+	 */
+	public LuceneResultsCollector(EntityIds entityIds, int limit) {
+		this(entityIds, limit, false, 0, 0);
+	}
+
+	/**
+	 * Creates a collector that collects only the hits ranked strictly below the hit (afterScore, afterId),
+	 * which allows paging through the results window by window.
+	 */
+	public LuceneResultsCollector(EntityIds entityIds, int limit, float afterScore, int afterId) {
+		this(entityIds, limit, true, afterScore, afterId);
+	}
+
+	private LuceneResultsCollector(EntityIds entityIds, int limit, boolean hasAfter, float afterScore,
+			int afterId) {
+		this.entityIds = entityIds;
+		this.limit = limit > 0 ? limit : 0;
+		this.hasAfter = hasAfter;
+		this.afterScore = afterScore;
+		this.afterId = afterId;
+	}
+
+	/**
+	 * Creates an empty collector with the same limit and starting point, e.g. for searching a single segment
+	 * in parallel with the others.
+	 */
+	LuceneResultsCollector newPartial() {
+		return new LuceneResultsCollector(entityIds, limit, hasAfter, afterScore, afterId);
+	}
+
+	/**
+	 * Adds the hits of a collector that has searched other segments of the same index.
+	 */
+	void merge(LuceneResultsCollector other) {
+		HitList hits = other.getResults();
+		for (int idx = 0; idx < hits.size(); idx++) {
+			offer(hits.score(idx), hits.id(idx));
+		}
 	}
 
 	@Override
@@ -46,12 +102,51 @@ public class LuceneResultsCollector extends Collector {
 
 	@Override
 	public void collect(int doc) throws IOException {
-		hits.add(new ScoreDoc(docToId(doc), scorer.score()));
+		float score = scorer.score();
+		if (hasAfter) {
+			if (score > afterScore) {
+				return;
+			}
+			if (score == afterScore && docToId(doc) <= afterId) {
+				return;
+			}
+		}
+		// cheap rejection before resolving the entity id
+		if (limit > 0 && size == limit && score < scores[0]) {
+			return;
+		}
+		offer(score, docToId(doc));
+	}
+
+	private void offer(float score, int id) {
+		if (ids == null) {
+			acquire();
+		}
+		if (limit == 0) {
+			if (size == ids.length) {
+				grow();
+			}
+			ids[size] = id;
+			scores[size] = score;
+			size++;
+		} else if (size < limit) {
+			if (size == ids.length) {
+				grow();
+			}
+			ids[size] = id;
+			scores[size] = score;
+			siftUp(size++);
+		} else if (HitList.isBetter(score, id, scores[0], ids[0])) {
+			ids[0] = id;
+			scores[0] = score;
+			siftDown(0, size);
+		}
 	}
 
 	@Override
 	public void setNextReader(IndexReader reader, int docBase) throws IOException {
-		this.reader = reader; this.docBase = docBase;
+		this.reader = reader;
+		this.segmentIds = entityIds.forSegment(reader);
 	}
 
 	@Override
@@ -60,25 +155,127 @@ public class LuceneResultsCollector extends Collector {
 	}
 
 	private int docToId(int docId) throws IOException {
-		if (docToURI[docId+docBase] == 0) {
-			Document doc = reader.document(docId, select);
-			if (doc != null) {
-				Fieldable field = doc.getField(LucenePlugin.FIELD_ID);
-				if (field != null) {
-					docToURI[docId+docBase] = Integer.parseInt(field.stringValue());
+		return segmentIds.get(reader, docId);
+	}
+
+	public HitList getResults() {
+		if (results == null) {
+			if (size == 0) {
+				results = HitList.EMPTY;
+			} else {
+				if (limit == 0) {
+					// heapify the appended hits
+					for (int idx = size / 2 - 1; idx >= 0; idx--) {
+						siftDown(idx, size);
+					}
 				}
+				// heap sort, the weakest hit at the root goes to the end
+				for (int end = size - 1; end > 0; end--) {
+					swap(0, end);
+					siftDown(0, end);
+				}
+				int[] resultIds = new int[size];
+				float[] resultScores = new float[size];
+				System.arraycopy(ids, 0, resultIds, 0, size);
+				System.arraycopy(scores, 0, resultScores, 0, size);
+				results = new HitList(resultIds, resultScores);
 			}
+			release();
 		}
-		return docToURI[docId+docBase];
+		return results;
 	}
 
-	public ScoreDoc[] getResults() {
-		if (results == null) {
-			results = new ScoreDoc[hits.size()];
-			for (int idx = 0; idx < results.length; idx++) {
-				results[idx] = hits.poll();
+	/**
+	 * Completes the results with the hits collected so far and hands the scratch buffers back to the thread.
+	 * Called when the search ends, normally or with an error, so that the buffers aren't lost to the thread;
+	 * the results remain available from {@link #getResults()}.
+	 */
+	public void close() {
+		getResults();
+	}
+
+	private void acquire() {
+		Scratch local = scratch.get();
+		if (local.inUse) {
+			// nested collectors on the same thread get their own buffers
+			local = new Scratch();
+		}
+		local.inUse = true;
+		buffers = local;
+		ids = local.ids;
+		scores = local.scores;
+	}
+
+	private void release() {
+		if (buffers != null) {
+			if (ids.length <= MAX_RETAINED) {
+				buffers.ids = ids;
+				buffers.scores = scores;
+			} else {
+				buffers.ids = new int[INITIAL_CAPACITY];
+				buffers.scores = new float[INITIAL_CAPACITY];
 			}
+			buffers.inUse = false;
+			buffers = null;
 		}
-		return results;
+		ids = null;
+		scores = null;
+	}
+
+	private void grow() {
+		int capacity = ids.length * 2;
+		if (limit > 0) {
+			capacity = Math.min(capacity, limit);
+		}
+		int[] newIds = new int[capacity];
+		float[] newScores = new float[capacity];
+		System.arraycopy(ids, 0, newIds, 0, size);
+		System.arraycopy(scores, 0, newScores, 0, size);
+		ids = newIds;
+		scores = newScores;
+	}
+
+	/**
+	 * Checks if the hit at position i is weaker than the one at position j, i.e. belongs closer to the root.
+	 */
+	private boolean isWorse(int i, int j) {
+		return HitList.isBetter(scores[j], ids[j], scores[i], ids[i]);
+	}
+
+	private void siftUp(int pos) {
+		while (pos > 0) {
+			int parent = (pos - 1) >>> 1;
+			if (!isWorse(pos, parent)) {
+				break;
+			}
+			swap(pos, parent);
+			pos = parent;
+		}
+	}
+
+	private void siftDown(int pos, int end) {
+		while (true) {
+			int child = 2 * pos + 1;
+			if (child >= end) {
+				break;
+			}
+			if (child + 1 < end && isWorse(child + 1, child)) {
+				child++;
+			}
+			if (!isWorse(child, pos)) {
+				break;
+			}
+			swap(pos, child);
+			pos = child;
+		}
+	}
+
+	private void swap(int i, int j) {
+		int id = ids[i];
+		ids[i] = ids[j];
+		ids[j] = id;
+		float score = scores[i];
+		scores[i] = scores[j];
+		scores[j] = score;
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,22 @@
+package com.ontotext.trree.plugin.lucene;
+
+/**
+ * The subject-object graph molecules are built from. A row holds the objects of the relevant statements of
+ * a subject.
+ */
+public interface MoleculeGraph {
+	/**
+	 * Reusable cursor over the objects of a row. A cursor is positioned on a row with {@link #seek(long)}
+	 * and can be moved to other rows any number of times, so walking the graph doesn't allocate per row.
+	 * Cursors aren't thread-safe, each thread needs its own.
+	 */
+	abstract class Cursor extends TableStorage.Iterator {
+		public abstract void seek(long row);
+	}
+
+	Cursor newCursor();
+
+	TableStorage.Iterator rowIterator(long row);
+
+	void shutDown();
+}
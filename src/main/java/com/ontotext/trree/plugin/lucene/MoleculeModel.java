@@ -3,19 +3,24 @@ package com.ontotext.trree.plugin.lucene;
 import com.ontotext.trree.sdk.Entities;
 import com.ontotext.trree.sdk.StatementIterator;
 import com.ontotext.trree.sdk.Statements;
+import gnu.trove.TLongArrayList;
 import gnu.trove.TLongHashSet;
-import gnu.trove.TLongIterator;
+import gnu.trove.TLongIntHashMap;
 import org.eclipse.rdf4j.model.IRI;
 import org.eclipse.rdf4j.model.Value;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.regex.Pattern;
 
 public class MoleculeModel implements JSONizer.JSONizableAsSimpleMap {
+	// number of statements or entities between the checks for a cancelled build while initializing
+	private static final int CANCEL_CHECK_INTERVAL = 65536;
+
 	private Statements statements;
 	private Entities entities;
 	private int entityBitSize;
@@ -26,13 +31,67 @@ public class MoleculeModel implements JSONizer.JSONizableAsSimpleMap {
 	private boolean allowMissingLanguage = true;
 	private HashSet<String> languages;
 	private File dataDir;
-	private TableStorage graph;
+	private MoleculeGraph graph;
 	private long[] includePredicates;
 	private long[] excludePredicates;
 	private long[] includeEntities;
 	private long[] excludeEntities;
+	// maximum number of neighbours followed from a single entity, 0 for no limit
+	private int maxFanOut = 0;
+	// maximum number of entities in a molecule, 0 for no limit
+	private int maxEntities = 0;
+	// shared by the threads building molecules, null for no caching
+	private ValueCache valueCache;
+	// flags of the entities computed by initialize(), null if not computed
+	private EntityBits entityBits;
+
+	/**
+	 * State of the molecule traversals of a thread, reused between molecules: the molecule being built and
+	 * the stack of entities still to be visited with their remaining hops.
+	 */
+	private static class Traversal {
+		final VisitedSet molecule = new VisitedSet();
+		long[] nodes = new long[64];
+		int[] hops = new int[64];
+		int top;
+		// the neighbours read from the statements, put in the order of the graph rows
+		long[] neighbours = new long[64];
+		MoleculeGraph.Cursor cursor;
+		// the graph of the cursor, the model may be initialized again with a new graph
+		MoleculeGraph cursorGraph;
+
+		void push(long node, int nodeHops) {
+			if (top == nodes.length) {
+				nodes = Arrays.copyOf(nodes, top * 2);
+				hops = Arrays.copyOf(hops, top * 2);
+			}
+			nodes[top] = node;
+			hops[top] = nodeHops;
+			top++;
+		}
+
+		/**
+		 * Reverses the entries pushed since the given position so that they are popped in the order they
+		 * were pushed.
+		 */
+		void reverseFrom(int from) {
+			for (int i = from, j = top - 1; i < j; i++, j--) {
+				long node = nodes[i];
+				nodes[i] = nodes[j];
+				nodes[j] = node;
+				int nodeHops = hops[i];
+				hops[i] = hops[j];
+				hops[j] = nodeHops;
+			}
+		}
+	}
 
-	private static final String MOLECULE_SEPARATOR = " ";
+	private final ThreadLocal<Traversal> traversals = new ThreadLocal<Traversal>() {
+		@Override
+		protected Traversal initialValue() {
+			return new Traversal();
+		}
+	};
 
 	public void setStatements(Statements statements) {
 		this.statements = statements;
@@ -43,6 +102,35 @@ public class MoleculeModel implements JSONizer.JSONizableAsSimpleMap {
 		entityBitSize = entities.getEntityIdSize();
 	}
 
+	/**
+	 * Creates a model with the configuration and the graph of this one that reads the entities and the
+	 * statements through another connection, e.g. one that is safe to use from other threads. Molecules can
+	 * be built concurrently as long as each thread passes its own molecule set.
+	 */
+	public MoleculeModel copyFor(Entities entities, Statements statements) {
+		MoleculeModel copy = new MoleculeModel();
+		copy.statements = statements;
+		copy.entities = entities;
+		copy.entityBitSize = entityBitSize;
+		copy.degree = degree;
+		copy.includeFilter = includeFilter;
+		copy.indexFilter = indexFilter;
+		copy.exclude = exclude;
+		copy.allowMissingLanguage = allowMissingLanguage;
+		copy.languages = languages;
+		copy.dataDir = dataDir;
+		copy.graph = graph;
+		copy.includePredicates = includePredicates;
+		copy.excludePredicates = excludePredicates;
+		copy.includeEntities = includeEntities;
+		copy.excludeEntities = excludeEntities;
+		copy.maxFanOut = maxFanOut;
+		copy.maxEntities = maxEntities;
+		copy.valueCache = valueCache;
+		copy.entityBits = entityBits;
+		return copy;
+	}
+
 	public int getDegree() {
 		return degree;
 	}
@@ -54,6 +142,35 @@ public class MoleculeModel implements JSONizer.JSONizableAsSimpleMap {
 		degree = d;
 	}
 
+	/**
+	 * Sets a cache for the values of the entities that appear in many molecules.
+	 */
+	public void setValueCache(ValueCache valueCache) {
+		this.valueCache = valueCache;
+	}
+
+	public int getMaxFanOut() {
+		return maxFanOut;
+	}
+
+	public void setMaxFanOut(int maxFanOut) {
+		if (maxFanOut < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.maxFanOut = maxFanOut;
+	}
+
+	public int getMaxEntities() {
+		return maxEntities;
+	}
+
+	public void setMaxEntities(int maxEntities) {
+		if (maxEntities < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.maxEntities = maxEntities;
+	}
+
 	public void setIncludeFilter(IncludeFilter f) {
 		assert f != null;
 		includeFilter = f;
@@ -105,151 +222,441 @@ public class MoleculeModel implements JSONizer.JSONizableAsSimpleMap {
 		dataDir = dir;
 	}
 
+	/**
+	 * Builds the subject-object graph of the relevant statements. The graph is kept in memory if it fits in
+	 * half of the free heap and has at most {@link CsrGraph#MAX_EDGES} statements, otherwise it is stored on
+	 * disk in a {@link TableStorage}.
+	 */
 	public void initialize() throws IOException {
-		StatementIterator iter = statements.get(0, 0, 0, 0);
+		initialize(new IndexingProgress());
+	}
+
+	/**
+	 * Builds the subject-object graph, stopping with an {@link InterruptedIOException} if the build is
+	 * cancelled or its thread is interrupted meanwhile.
+	 */
+	public void initialize(IndexingProgress progress) throws IOException {
+		entityBits = computeEntityBits(progress);
+
 		int degree = getDegree();
 		if (degree > 0) {
 			long size = entities.size() + 1;
 
-			// initialize table storage
-			graph = new TableStorage(getDataDir().getAbsolutePath() + File.separator + "graph",
-					                        size, size, entityBitSize);
-
-			// stuff the whole repository into the table storage
-			while (iter.next()) {
-				boolean isRelevant = true;
+			// the counts of the rows, kept for the storage on disk if the graph doesn't fit in memory
+			CsrGraph counted = null;
+			if (size < Integer.MAX_VALUE && CsrGraph.requiredMemory(size, 0) <= getGraphMemoryBudget()) {
+				CsrGraph csr = new CsrGraph(size);
+				StatementIterator iter = statements.get(0, 0, 0, 0);
+				try {
+					for (long count = 0; iter.next(); count++) {
+						checkCancelled(progress, count);
+						if (isRelevant(iter.subject, iter.predicate, iter.object)) {
+							csr.count(iter.subject);
+						}
+					}
+				} finally {
+					iter.close();
+				}
+				long edges = csr.getEdgeCount();
+				if (edges <= CsrGraph.MAX_EDGES && CsrGraph.requiredMemory(size, edges) <= getGraphMemoryBudget()) {
+					csr.allocate();
+					iter = statements.get(0, 0, 0, 0);
+					try {
+						for (long count = 0; iter.next(); count++) {
+							checkCancelled(progress, count);
+							if (isRelevant(iter.subject, iter.predicate, iter.object)) {
+								csr.add(iter.subject, iter.object);
+							}
+						}
+					} finally {
+						iter.close();
+					}
+					csr.complete();
+					graph = csr;
+					return;
+				}
+				counted = csr;
+			}
 
-				Entities.Type subjectType = entities.getType(iter.subject);
-				Entities.Type objectType = entities.getType(iter.object);
+			// store the graph on disk, set before it is filled so that a failed build deletes its files
+			TableStorage storage = new TableStorage(getDataDir().getAbsolutePath() + File.separator + "graph",
+					size, size);
+			graph = storage;
 
-				if (checkPredicate(iter.predicate) && (checkEntity(iter.subject, subjectType)
-						&& checkEntity(iter.object, objectType))) {
-					// skip redundant connections
-					if (objectType == Entities.Type.URI) {
-						if (!includeFilter.includeURI() && degree == 1) {
-							isRelevant = false;
-						}
-					} else if (objectType == Entities.Type.LITERAL) {
-						if (!includeFilter.includeLiteral()) {
-							isRelevant = false;
+			if (counted != null) {
+				for (int row = 0; row < size; row++) {
+					checkCancelled(progress, row);
+					storage.count(row, counted.getCount(row));
+				}
+				// release the counts before the objects are allocated
+				counted = null;
+			} else {
+				StatementIterator iter = statements.get(0, 0, 0, 0);
+				try {
+					for (long count = 0; iter.next(); count++) {
+						checkCancelled(progress, count);
+						if (isRelevant(iter.subject, iter.predicate, iter.object)) {
+							storage.count(iter.subject);
 						}
 					}
-					if (isRelevant) {
-						graph.add(iter.subject, iter.object);
+				} finally {
+					iter.close();
+				}
+			}
+			storage.allocate();
+			StatementIterator iter = statements.get(0, 0, 0, 0);
+			try {
+				for (long count = 0; iter.next(); count++) {
+					checkCancelled(progress, count);
+					if (isRelevant(iter.subject, iter.predicate, iter.object)) {
+						storage.add(iter.subject, iter.object);
 					}
 				}
+			} finally {
+				iter.close();
 			}
+			storage.complete();
 		}
 	}
 
-	public String getMolecule(long id, TLongHashSet molecule) {
-		// build molecule for this entity
-		buildMolecule(id, entities.getType(id), molecule);
+	/**
+	 * Computes the flags of all entities in a single pass over the entity pool.
+	 *
+	 * @return null if there are too many entities to be kept in bit sets
+	 */
+	private EntityBits computeEntityBits(IndexingProgress progress) throws IOException {
+		long size = entities.size() + 1;
+		if (size >= Integer.MAX_VALUE) {
+			return null;
+		}
+
+		// the values of other entities are only needed when the molecules extend beyond their centres
+		boolean withIncluded = getDegree() > 0;
+		EntityBits bits = new EntityBits((int) size, withIncluded);
+		for (int id = 1; id < size; id++) {
+			checkCancelled(progress, id);
+			Entities.Type type = entities.getType(id);
+			// only index base equivalence classes
+			if (indexFilter.index(type) && entities.getClass(id) == id) {
+				bits.setIndexable(id);
+			}
+			if (withIncluded && isIncluded(id, type, false)) {
+				bits.setIncluded(id);
+			}
+		}
+		return bits;
+	}
 
-		StringBuilder stringizedMolecule = new StringBuilder();
+	/**
+	 * Stops the initialization if the build has been cancelled, checked every {@link #CANCEL_CHECK_INTERVAL}
+	 * steps of a loop.
+	 */
+	private static void checkCancelled(IndexingProgress progress, long step) throws InterruptedIOException {
+		if (step % CANCEL_CHECK_INTERVAL != 0) {
+			return;
+		}
+		if (Thread.currentThread().isInterrupted()) {
+			throw new InterruptedIOException("Initializing molecules interrupted");
+		}
+		if (progress.isCancelled()) {
+			throw new InterruptedIOException("Initializing molecules cancelled");
+		}
+	}
 
-		TLongIterator iter = molecule.iterator();
-		while (iter.hasNext()) {
-			long node = iter.next();
-			Entities.Type type = entities.getType(node);
+	/**
+	 * @return the flags of the entities computed by {@link #initialize()} or null if they weren't computed
+	 */
+	public EntityBits getEntityBits() {
+		return entityBits;
+	}
 
-			boolean include = false;
+	/**
+	 * Returns the memory available for an in-memory graph, half of the heap that is still free.
+	 */
+	long getGraphMemoryBudget() {
+		Runtime runtime = Runtime.getRuntime();
+		return (runtime.maxMemory() - runtime.totalMemory() + runtime.freeMemory()) / 2;
+	}
 
-			// Special processing for the centre of a molecule
-			if (node == id) {
-				if (includeFilter.includeCentre()) {
-					if (type != Entities.Type.BNODE) {
-						include = true;
+	/**
+	 * Adds the centres of the molecules that expand the subject of a statement that has been added or
+	 * removed: the subject itself and the entities from which it is reached with hops to spare, walking the
+	 * relevant statements backwards. As in {@link #buildMolecule(long, boolean)} stepping into a blank node
+	 * doesn't take a hop. The statement must be relevant to the molecules, which is checked by the caller as
+	 * a removed statement can't be read anymore.
+	 */
+	void addAffectedCentres(long subject, TLongHashSet centres) {
+		if (degree <= 0) {
+			// the molecules consist of their centres only
+			return;
+		}
+		centres.add(subject);
+		// the fewest hops a centre must have left on reaching an entity so that the subject gets expanded
+		TLongIntHashMap needed = new TLongIntHashMap();
+		needed.put(subject, 1);
+		TLongArrayList level = new TLongArrayList();
+		level.add(subject);
+		for (int need = 1; need <= degree && level.size() > 0; need++) {
+			TLongArrayList nextLevel = new TLongArrayList();
+			// the entities reached through blank nodes are appended to the level that is being walked
+			for (int idx = 0; idx < level.size(); idx++) {
+				long node = level.get(idx);
+				if (needed.get(node) != need) {
+					// reached with fewer hops afterwards
+					continue;
+				}
+				int previousNeed = entities.getType(node) == Entities.Type.BNODE ? need : need + 1;
+				if (previousNeed > degree) {
+					continue;
+				}
+				StatementIterator iter = statements.get(0, 0, node, 0);
+				try {
+					while (iter.next()) {
+						long previous = iter.subject;
+						if (!isRelevant(previous, iter.predicate, node)) {
+							continue;
+						}
+						if (needed.containsKey(previous) && needed.get(previous) <= previousNeed) {
+							continue;
+						}
+						needed.put(previous, previousNeed);
+						centres.add(previous);
+						(previousNeed == need ? level : nextLevel).add(previous);
 					}
+				} finally {
+					iter.close();
+				}
+			}
+			level = nextLevel;
+		}
+	}
+
+	boolean isRelevant(long subject, long predicate, long object) {
+		Entities.Type subjectType = entities.getType(subject);
+		Entities.Type objectType = entities.getType(object);
+
+		if (checkPredicate(predicate) && (checkEntity(subject, subjectType)
+				&& checkEntity(object, objectType))) {
+			// skip redundant connections
+			if (objectType == Entities.Type.URI) {
+				if (!includeFilter.includeURI() && degree == 1) {
+					return false;
+				}
+			} else if (objectType == Entities.Type.LITERAL) {
+				if (!includeFilter.includeLiteral()) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Fills the text of the molecule of an entity.
+	 *
+	 * @param text cleared before adding the values of the entities of the molecule
+	 */
+	public void getMolecule(long id, MoleculeText text) {
+		// build molecule for this entity
+		VisitedSet molecule = buildMolecule(id, true);
+
+		stringify(id, molecule, text);
+	}
+
+	/**
+	 * Collects the values of the entities of a molecule that pass the filters.
+	 */
+	private void stringify(long id, VisitedSet molecule, MoleculeText text) {
+		text.clear();
+
+		for (int idx = 0; idx < molecule.size(); idx++) {
+			long node = molecule.get(idx);
+			String stringValue;
+			if (node == id || valueCache == null) {
+				stringValue = serialize(node, node == id);
+			} else {
+				// the centre is treated specially, the other entities serialize the same in any molecule
+				ValueCache.Entry cached = valueCache.get(node);
+				if (cached != null) {
+					stringValue = cached.value;
+				} else {
+					stringValue = serialize(node, false);
+					valueCache.put(node, stringValue);
 				}
 			}
 
-			if (type == Entities.Type.URI) {
-				if (includeFilter.includeURI()) {
+			if (stringValue != null) {
+				text.append(stringValue);
+			}
+		}
+	}
+
+	/**
+	 * Checks the type and the language of an entity against the filters for the values in molecules.
+	 */
+	private boolean isIncluded(long node, Entities.Type type, boolean centre) {
+		boolean include = false;
+
+		// Special processing for the centre of a molecule
+		if (centre) {
+			if (includeFilter.includeCentre()) {
+				if (type != Entities.Type.BNODE) {
 					include = true;
 				}
 			}
+		}
+
+		if (type == Entities.Type.URI) {
+			if (includeFilter.includeURI()) {
+				include = true;
+			}
+		}
 
-			// skip literals with non-configured languages
-			if (type == Entities.Type.LITERAL) {
-				if (includeFilter.includeLiteral()) {
-					if (languages == null) {
-						assert allowMissingLanguage;
-						include = true;
+		// skip literals with non-configured languages
+		if (type == Entities.Type.LITERAL) {
+			if (includeFilter.includeLiteral()) {
+				if (languages == null) {
+					assert allowMissingLanguage;
+					include = true;
+				} else {
+					String language = entities.getLanguage(node);
+					if (language == null) {
+						if (allowMissingLanguage) {
+							include = true;
+						}
 					} else {
-						String language = entities.getLanguage(node);
-						if (language == null) {
-							if (allowMissingLanguage) {
-								include = true;
-							}
-						} else {
-							if (languages.contains(language)) {
-								include = true;
-							}
+						if (languages.contains(language)) {
+							include = true;
 						}
 					}
 				}
 			}
+		}
 
-			if (include) {
-				// read this entity from the pool
-				Value value = entities.get(node);
-				if (value == null) {
-					continue;
-				}
+		return include;
+	}
 
-				String stringValue = stringify(value);
+	/**
+	 * Returns the value of an entity as it appears in molecules or null if the entity isn't included.
+	 *
+	 * @param centre whether the entity is the centre of the molecule
+	 */
+	private String serialize(long node, boolean centre) {
+		boolean include;
+		if (!centre && entityBits != null && entityBits.coversIncluded(node)) {
+			include = entityBits.isIncluded(node);
+		} else {
+			include = isIncluded(node, entities.getType(node), centre);
+		}
 
-				// check if exclusion pattern will allow this value
-				if (exclude != null) {
-					if (exclude.matcher(stringValue).matches()) {
-						continue;
-					}
-				}
+		if (!include) {
+			return null;
+		}
 
-				if (stringizedMolecule.length() > 0) {
-					stringizedMolecule.append(MOLECULE_SEPARATOR);
-				}
+		// read this entity from the pool
+		Value value = entities.get(node);
+		if (value == null) {
+			return null;
+		}
+
+		String stringValue = stringify(value);
 
-				stringizedMolecule.append(stringValue);
+		// check if exclusion pattern will allow this value
+		if (exclude != null) {
+			if (exclude.matcher(stringValue).matches()) {
+				return null;
 			}
 		}
-		return stringizedMolecule.toString();
+		return stringValue;
 	}
 
 	private String stringify(Value value) {
 		return (value instanceof IRI) ? ((IRI) value).getLocalName() : value.stringValue();
 	}
 
-	private TLongHashSet buildMolecule(long id, Entities.Type type, TLongHashSet molecule) {
-		if (molecule == null) {
-			molecule = new TLongHashSet();
-		}
-
-		buildMolecule(id, type, molecule, getDegree());
+	/**
+	 * Collects the entities within the configured number of hops from an entity, blank nodes not counting
+	 * as hops. The graph is walked depth-first with an explicit stack, so the result is the same as that of
+	 * a recursive walk without the risk of overflowing the call stack on long chains of blank nodes. The
+	 * neighbours of an entity are visited in increasing id order, the order of its graph row, also when they
+	 * are read from the statements, so a molecule built for an update is the same as that of a full build.
+	 * At most {@link #maxFanOut} neighbours of an entity are followed and the walk stops once the molecule
+	 * has {@link #maxEntities} entities. The entities are returned in the order they are visited.
+	 *
+	 * @param useGraph whether to read the neighbours from the graph built by {@link #initialize()} or from
+	 *                 the repository statements
+	 * @return the entities of the molecule, valid until the next molecule is built on the same thread
+	 */
+	private VisitedSet buildMolecule(long id, boolean useGraph) {
+		Traversal traversal = traversals.get();
+		VisitedSet molecule = traversal.molecule;
+		molecule.clear();
+		traversal.top = 0;
+		traversal.push(id, getDegree());
+
+		while (traversal.top > 0) {
+			traversal.top--;
+			long node = traversal.nodes[traversal.top];
+			int hops = traversal.hops[traversal.top];
+			// have we visited this entity
+			if (!molecule.add(node)) {
+				continue;
+			}
+			if (maxEntities > 0 && molecule.size() >= maxEntities) {
+				break;
+			}
 
+			// proceed further only if there are remaining hops to be done
+			if (hops > 0) {
+				int first = traversal.top;
+				if (useGraph) {
+					if (traversal.cursorGraph != graph) {
+						traversal.cursor = graph.newCursor();
+						traversal.cursorGraph = graph;
+					}
+					MoleculeGraph.Cursor iter = traversal.cursor;
+					iter.seek(node);
+					for (int count = 0; iter.hasNext() && (maxFanOut == 0 || count < maxFanOut); count++) {
+						pushNext(traversal, molecule, iter.next(), hops);
+					}
+				} else {
+					int size = 0;
+					StatementIterator iter = statements.get(node, 0, 0, 0);
+					try {
+						while (iter.next()) {
+							// the same statements as those in the graph of the full build
+							if (!isRelevant(node, iter.predicate, iter.object))
+								continue;
+							if (size == traversal.neighbours.length) {
+								traversal.neighbours = Arrays.copyOf(traversal.neighbours, size * 2);
+							}
+							traversal.neighbours[size++] = iter.object;
+						}
+					} finally {
+						iter.close();
+					}
+					// sorted without duplicates like a graph row, so that an update gives the same molecule
+					long[] neighbours = traversal.neighbours;
+					Arrays.sort(neighbours, 0, size);
+					for (int idx = 0, count = 0; idx < size && (maxFanOut == 0 || count < maxFanOut); idx++) {
+						if (idx == 0 || neighbours[idx] != neighbours[idx - 1]) {
+							pushNext(traversal, molecule, neighbours[idx], hops);
+							count++;
+						}
+					}
+				}
+				traversal.reverseFrom(first);
+			}
+		}
 		return molecule;
 	}
 
-	private void buildMolecule(long id, Entities.Type type, TLongHashSet molecule, int hops) {
-		// have we visited this entity
-		if (molecule.contains(id)) {
-			return;
-		}
-
-		// add this entity to the molecule
-		molecule.add(id);
-
-		// proceed further only if there are remaining hops to be done
-		if (hops > 0) {
-			TableStorage.Iterator iter = graph.rowIterator(id);
-			while (iter.hasNext()) {
-				long next = iter.next();
-				Entities.Type nextType = entities.getType(next);
-				int nextHops = nextType == Entities.Type.BNODE ? hops : hops - 1;
-				// proceed building molecule with next node
-				buildMolecule(next, nextType, molecule, nextHops);
-			}
+	private void pushNext(Traversal traversal, VisitedSet molecule, long next, int hops) {
+		// an entity that is already in the molecule would be skipped when popped anyway
+		if (!molecule.contains(next)) {
+			Entities.Type nextType = entities.getType(next);
+			traversal.push(next, nextType == Entities.Type.BNODE ? hops : hops - 1);
 		}
 	}
 
@@ -320,110 +727,19 @@ public class MoleculeModel implements JSONizer.JSONizableAsSimpleMap {
 		if (graph != null) {
 			graph.shutDown();
 		}
+		entityBits = null;
 	}
 
-	/** Similar to buildMolecule() but does not rely on the subject-object graph.
+	/** Similar to getMolecule() but does not rely on the subject-object graph.
 	 *  Method is used to build single molecules for incremental index update.
+	 *  @return false if the molecule is empty
 	 */
-	private void buildMoleculeWoGraph(long id, Entities.Type type, int hops, TLongHashSet molecule) {
-		// have we visited this entity
-		if (molecule.contains(id)) {
-			return;
-		}
-
-		// add this entity to the molecule
-		molecule.add(id);
-
-		// proceed further only if there are remaining hops to be done
-		if (hops > 0) {
-			StatementIterator iter = statements.get(id, 0, 0, 0);
-			while (iter.next()) {
-				if (!checkPredicate(iter.predicate))
-					continue;
-				long next = iter.object;
-				Entities.Type nextType = entities.getType(next);
-				int nextHops = nextType == Entities.Type.BNODE ? hops : hops - 1;
-				// proceed building molecule with next node
-				buildMoleculeWoGraph(next, nextType, nextHops, molecule);
-			}
-		}
-	}
-
-	public String getMoleculeWoGraph(long id) {
-		TLongHashSet molecule = new TLongHashSet();
-
+	public boolean getMoleculeWoGraph(long id, MoleculeText text) {
 		// build molecule for this entity
-		buildMoleculeWoGraph(id, entities.getType(id), getDegree(), molecule);
-
-		StringBuilder stringizedMolecule = new StringBuilder();
-
-		TLongIterator iter = molecule.iterator();
-		while (iter.hasNext()) {
-			long node = iter.next();
-			Entities.Type type = entities.getType(node);
-
-			boolean include = false;
-
-			// Special processing for the centre of a molecule
-			if (node == id) {
-				if (includeFilter.includeCentre()) {
-					if (type != Entities.Type.BNODE) {
-						include = true;
-					}
-				}
-			}
-
-			if (type == Entities.Type.URI) {
-				if (includeFilter.includeURI()) {
-					include = true;
-				}
-			}
-
-			// skip literals with non-configured languages
-			if (type == Entities.Type.LITERAL) {
-				if (includeFilter.includeLiteral()) {
-					if (languages == null) {
-						assert allowMissingLanguage;
-						include = true;
-					} else {
-						String language = entities.getLanguage(node);
-						if (language == null) {
-							if (allowMissingLanguage) {
-								include = true;
-							}
-						} else {
-							if (languages.contains(language)) {
-								include = true;
-							}
-						}
-					}
-				}
-			}
+		VisitedSet molecule = buildMolecule(id, false);
 
-			if (include) {
-				// read this entity from the pool
-				Value value = entities.get(node);
-				if (value == null) {
-					continue;
-				}
-
-				String stringValue = stringify(value);
-
-				// check if exclusion pattern will allow this value
-				if (exclude != null) {
-					if (exclude.matcher(stringValue).matches()) {
-						continue;
-					}
-				}
-
-				if (stringizedMolecule.length() > 0) {
-					stringizedMolecule.append(MOLECULE_SEPARATOR);
-				}
-
-				stringizedMolecule.append(stringValue);
-			}
-		}
-		return stringizedMolecule.length() > 0 ? stringizedMolecule.toString() : null;
+		stringify(id, molecule, text);
+		return !text.isEmpty();
 	}
 
 	private final static String
@@ -438,7 +754,9 @@ public class MoleculeModel implements JSONizer.JSONizableAsSimpleMap {
 		str_includePredicates= "includePredicates",
 		str_excludePredicates= "excludePredicates",
 		str_includeEntities  = "includeEntities",
-		str_excludeEntities  = "excludeEntities";
+		str_excludeEntities  = "excludeEntities",
+		str_maxFanOut        = "maxFanOut",
+		str_maxEntities      = "maxEntities";
 
 	public String  toJSON() {
 		return new JSONizer().add(this).toString();
@@ -483,6 +801,13 @@ public class MoleculeModel implements JSONizer.JSONizableAsSimpleMap {
 
 		val = map.get(str_excludeEntities);
 		this.excludeEntities = (val.type == JSONparser.ARR ? val.asArr().asLongArray() : null);
+
+		// missing in indices created before the limits were introduced
+		val = map.get(str_maxFanOut);
+		this.maxFanOut = (val.type == JSONparser.STR ? val.asInt() : 0);
+
+		val = map.get(str_maxEntities);
+		this.maxEntities = (val.type == JSONparser.STR ? val.asInt() : 0);
 	}
 
 	@Override
@@ -492,7 +817,7 @@ public class MoleculeModel implements JSONizer.JSONizableAsSimpleMap {
 
 	private class SimpleMapAdapter implements JSONizer.SimpleMap {
 		int fieldId = -1;
-		final static int nFields = 11;
+		final static int nFields = 14;
 
 		@Override
 		public boolean hasNext() {
@@ -518,6 +843,8 @@ public class MoleculeModel implements JSONizer.JSONizableAsSimpleMap {
 				case 9: return key ? str_excludePredicates : excludePredicates;
 				case 10:return key ? str_includeEntities : includeEntities;
 				case 11:return key ? str_excludeEntities : excludeEntities;
+				case 12:return key ? str_maxFanOut : maxFanOut;
+				case 13:return key ? str_maxEntities : maxEntities;
 			}
 			assert false;
 			return "<none>";
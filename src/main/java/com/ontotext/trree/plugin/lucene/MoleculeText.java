@@ -0,0 +1,128 @@
+package com.ontotext.trree.plugin.lucene;
+
+import java.io.Reader;
+import java.util.ArrayList;
+
+/**
+ * The text of a molecule as the list of the values of its entities, read by the analyzer one value after the
+ * other instead of being concatenated into a single string first. An instance is meant to be reused for the
+ * molecules indexed by one thread: {@link #clear()} keeps the list and Lucene closing the reader after a
+ * document is inverted has no effect.
+ */
+public class MoleculeText extends Reader {
+	private static final char SEPARATOR = ' ';
+
+	private final ArrayList<String> values = new ArrayList<String>();
+	private int length;
+	private int hash;
+
+	// read position: the current value and the offset in it, -1 for the separator before it
+	private int value;
+	private int offset;
+
+	public void clear() {
+		values.clear();
+		length = 0;
+		hash = 0;
+		value = 0;
+		offset = 0;
+	}
+
+	public void append(String text) {
+		if (length == 0 && text.isEmpty()) {
+			// nothing to separate from yet
+			return;
+		}
+		if (!values.isEmpty()) {
+			hash = 31 * hash + SEPARATOR;
+			length++;
+		}
+		// combine the cached hash of the value instead of going over its characters again
+		hash = hash * pow31(text.length()) + text.hashCode();
+		length += text.length();
+		values.add(text);
+	}
+
+	public boolean isEmpty() {
+		return length == 0;
+	}
+
+	/**
+	 * @return the number of characters in the text
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * @return the same value as the hash code of the text as a {@link String}. The fingerprint of a document
+	 *         is computed from it, so it depends on the order of the values: those of molecules walked in
+	 *         the order of {@link LuceneIndex#FORMAT_MOLECULE_ORDER} differ from the ones of older indices
+	 */
+	public int textHashCode() {
+		return hash;
+	}
+
+	private static int pow31(int exponent) {
+		int result = 1;
+		int base = 31;
+		while (exponent > 0) {
+			if ((exponent & 1) != 0) {
+				result *= base;
+			}
+			base *= base;
+			exponent >>= 1;
+		}
+		return result;
+	}
+
+	@Override
+	public int read(char[] buffer, int off, int len) {
+		if (len == 0) {
+			return 0;
+		}
+		int read = 0;
+		while (read < len && value < values.size()) {
+			if (offset < 0) {
+				buffer[off + read++] = SEPARATOR;
+				offset = 0;
+				continue;
+			}
+			String text = values.get(value);
+			int count = Math.min(len - read, text.length() - offset);
+			text.getChars(offset, offset + count, buffer, off + read);
+			read += count;
+			offset += count;
+			if (offset == text.length()) {
+				value++;
+				offset = -1;
+			}
+		}
+		return read > 0 ? read : -1;
+	}
+
+	/**
+	 * Rewinds the text so that it can be read again.
+	 */
+	@Override
+	public void reset() {
+		value = 0;
+		offset = 0;
+	}
+
+	@Override
+	public void close() {
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder(length);
+		for (int idx = 0; idx < values.size(); idx++) {
+			if (idx > 0) {
+				builder.append(SEPARATOR);
+			}
+			builder.append(values.get(idx));
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,99 @@
+package com.ontotext.trree.plugin.lucene;
+
+import com.ontotext.trree.sdk.Entities;
+import com.ontotext.trree.sdk.Entities.Scope;
+import gnu.trove.TIntLongHashMap;
+import gnu.trove.TLongObjectHashMap;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+
+/**
+ * Scores of the entities produced by the Lucene queries of a single request, used to answer
+ * <code>luc:score</code>. Each open iterator records its score under the entity it is positioned on, so a
+ * score is looked up in constant time. When several iterators are positioned on the same entity, e.g. nested
+ * patterns of different indices, the one that was positioned last, i.e. the innermost pattern, provides the
+ * score; once it moves on, the score of the enclosing pattern is visible again. The literals created for
+ * the scores are reused for identical values.
+ */
+public class RequestScores {
+	private static final ValueFactory F = SimpleValueFactory.getInstance();
+
+	/**
+	 * An iterator positioned on an entity. It is valid as long as it is the current position of its
+	 * iterator, the invalid ones are dropped when they get on top of the stack of their entity.
+	 */
+	static final class Position {
+		private final LuceneIterator iterator;
+		private final float score;
+		// the position of the enclosing iterator on the same entity
+		private final Position shadowed;
+
+		private Position(LuceneIterator iterator, float score, Position shadowed) {
+			this.iterator = iterator;
+			this.score = score;
+			this.shadowed = shadowed;
+		}
+	}
+
+	// entity -> the last iterator positioned on it
+	private final TLongObjectHashMap<Position> positions = new TLongObjectHashMap<Position>();
+	// float bits -> id of the request-scoped literal
+	private final TIntLongHashMap literals = new TIntLongHashMap();
+
+	/**
+	 * Records that an iterator is positioned on an entity, after it has left its previous one.
+	 */
+	synchronized void enter(LuceneIterator iterator, long entity, float score) {
+		Position position = new Position(iterator, score, positions.get(entity));
+		positions.put(entity, position);
+		iterator.position = position;
+	}
+
+	/**
+	 * Records that an iterator has left the entity it was positioned on, if any.
+	 */
+	synchronized void leave(LuceneIterator iterator, long entity) {
+		if (iterator.position == null) {
+			return;
+		}
+		iterator.position = null;
+		top(entity);
+	}
+
+	/**
+	 * Returns the score of the last iterator positioned on an entity or 0 if there is none.
+	 */
+	public synchronized float get(long entity) {
+		Position position = top(entity);
+		return position != null ? position.score : 0;
+	}
+
+	/**
+	 * Drops the positions of the iterators that have left an entity from the top of its stack.
+	 */
+	private Position top(long entity) {
+		Position position = positions.get(entity);
+		if (position == null || position.iterator.position == position) {
+			return position;
+		}
+		do {
+			position = position.shadowed;
+		} while (position != null && position.iterator.position != position);
+		if (position == null) {
+			positions.remove(entity);
+		} else {
+			positions.put(entity, position);
+		}
+		return position;
+	}
+
+	public synchronized long getLiteral(float score, Entities entities) {
+		int key = Float.floatToIntBits(score);
+		long id = literals.get(key);
+		if (id == 0) {
+			id = entities.put(F.createLiteral(Float.toString(score)), Scope.REQUEST);
+			literals.put(key, id);
+		}
+		return id;
+	}
+}
@@ -1,17 +1,13 @@
 package com.ontotext.trree.plugin.lucene;
 
 import com.ontotext.trree.sdk.Entities;
-import com.ontotext.trree.sdk.Entities.Scope;
 import com.ontotext.trree.sdk.RequestContext;
 import com.ontotext.trree.sdk.StatementIterator;
-import org.eclipse.rdf4j.model.ValueFactory;
-import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
 
 public class ScoreIterator extends StatementIterator {
 	private final LucenePlugin plugin;
 	private final Entities entities;
 	private RequestContext requestContext;
-	private static final ValueFactory F = SimpleValueFactory.getInstance();
 
 	public ScoreIterator(long subject, long predicate, long object, LucenePlugin plugin, Entities entities,
 			RequestContext requestContext) {
@@ -26,8 +22,7 @@ public class ScoreIterator extends StatementIterator {
 		if (subject == 0 || requestContext == null) {
 			return false;
 		}
-		float score = plugin.getScore(requestContext, subject);
-        object = entities.put(F.createLiteral(Float.toString(score)), Scope.REQUEST);
+		object = plugin.getScoreLiteral(requestContext, subject, entities);
 		requestContext = null; // so further calls are responded to negatively
 		return true;
 	}
@@ -1,27 +1,40 @@
 package com.ontotext.trree.plugin.lucene;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
 
 import org.slf4j.LoggerFactory;
 
-import com.ontotext.trree.StatementIdIterator;
-import com.ontotext.trree.big.collections.PairCollection;
-import com.ontotext.trree.big.collections.PairCollection.PairConnection;
-import com.ontotext.trree.transactions.TransactionException;
-
 /**
- * Copied from com.ontotext.trree.util and reintroduced the class to com.ontotext.trree.plugin.lucene
+ * On-disk subject-object graph for repositories whose graph doesn't fit in memory. It has the compressed
+ * sparse row form of {@link CsrGraph} with the offsets and the objects kept in memory-mapped files, so the
+ * operating system pages in the parts that are being read. The cursors read the rows straight from the
+ * mappings, so the threads building molecules don't share any lock and the rows aren't copied.
  *
- * @author Dimitar Karamanov dimitar.karamanov@ontotext.com
+ * The graph is built in the same two passes as {@link CsrGraph}: the objects of each row are counted with
+ * {@link #count(long)}, {@link #allocate()} reserves the space, {@link #add(long, long)} stores them and
+ * {@link #complete()} sorts the rows and drops duplicates.
  */
+public class TableStorage implements MoleculeGraph {
+    private static final String OFFSETS_SUFFIX = ".offsets";
+    private static final String FILL_SUFFIX = ".fill";
+    private static final String TARGETS_SUFFIX = ".targets";
+    // rows of up to this many objects are sorted on the heap, longer ones in place in the file
+    private static final int MAX_SORT_BUFFER = 1 << 20;
 
-public class TableStorage {
     private final long rows;
     private final long cols;
+    private final String pathPrefix;
 
-    private final PairCollection collection;
-    private PairConnection connection;
+    // the counts of the rows and after allocate() the row starts, rows + 1 entries
+    private LongFile offsets;
+    // the number of objects stored in each row while the graph is filled
+    private LongFile fill;
+    private LongFile targets;
 
     public abstract static class Iterator {
         public abstract boolean hasNext();
@@ -31,86 +44,243 @@ public class TableStorage {
         public abstract long size();
     }
 
-    public TableStorage(String pathPrefix, long x, long y) {
-        this(pathPrefix, x, y, 32);
+    /**
+     * A file of longs mapped in chunks, as a single mapping is limited to 2GB.
+     */
+    private static class LongFile {
+        private static final int CHUNK_BITS = 27;
+        private static final long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+
+        private final File file;
+        private final RandomAccessFile raf;
+        private final LongBuffer[] chunks;
+
+        LongFile(File file, long length) throws IOException {
+            this.file = file;
+            file.delete();
+            raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(length * 8);
+                int count = (int) ((length + CHUNK_MASK) >>> CHUNK_BITS);
+                chunks = new LongBuffer[count];
+                for (int idx = 0; idx < count; idx++) {
+                    long start = (long) idx << CHUNK_BITS;
+                    long size = Math.min(CHUNK_MASK + 1, length - start) * 8;
+                    chunks[idx] = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, start * 8, size)
+                            .asLongBuffer();
+                }
+            } catch (IOException ex) {
+                raf.close();
+                file.delete();
+                throw ex;
+            }
+        }
+
+        long get(long index) {
+            return chunks[(int) (index >>> CHUNK_BITS)].get((int) (index & CHUNK_MASK));
+        }
+
+        void set(long index, long value) {
+            chunks[(int) (index >>> CHUNK_BITS)].put((int) (index & CHUNK_MASK), value);
+        }
+
+        void delete() {
+            try {
+                raf.close();
+            } catch (IOException ex) {
+                LoggerFactory.getLogger(getClass()).warn("Failed closing " + file, ex);
+            }
+            // the file may remain on some platforms until the mappings are garbage collected
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
     }
 
-    public TableStorage(String pathPrefix, long x, long y, int valuesBitSize) {
+    /**
+     * @param pathPrefix the path of the files of the graph without their extensions
+     * @param x the number of rows, i.e. the maximum subject id + 1
+     * @param y the maximum object id + 1
+     */
+    public TableStorage(String pathPrefix, long x, long y) throws IOException {
         rows = x;
         cols = y;
-        File main_file = new File(pathPrefix);
-        File index_file = new File(pathPrefix+".index");
-        main_file.delete(); index_file.delete();
-        collection = new PairCollection(main_file, 1000, valuesBitSize);
-        try {
-            collection.initialize();
-        } catch (TransactionException e) {
-            LoggerFactory.getLogger(this.getClass()).error("Failed initializing collection", e);
-            return;
-        }
-        connection = collection.getConnection();
-        try {
-            connection.beginTransaction();
-        } catch (TransactionException e) {
-            LoggerFactory.getLogger(getClass()).error("Failed starting transaction", e);
-            connection = null;
+        this.pathPrefix = pathPrefix;
+        offsets = new LongFile(new File(pathPrefix + OFFSETS_SUFFIX), rows + 1);
+    }
+
+    public void count(long row) {
+        count(row, 1);
+    }
+
+    /**
+     * Counts several objects of a row at once, e.g. counted by a {@link CsrGraph} that turned out too large.
+     */
+    public void count(long row, long objects) {
+        if (0 > row || row >= rows) {
+            throw new IndexOutOfBoundsException();
+        }
+        offsets.set(row + 1, offsets.get(row + 1) + objects);
+    }
+
+    /**
+     * Allocates the objects once all of them are counted. The offsets become the row starts and each row is
+     * then filled from its start.
+     */
+    public void allocate() throws IOException {
+        for (long row = 1; row <= rows; row++) {
+            offsets.set(row, offsets.get(row) + offsets.get(row - 1));
         }
+        // one more so that the file isn't empty
+        targets = new LongFile(new File(pathPrefix + TARGETS_SUFFIX), offsets.get(rows) + 1);
+        fill = new LongFile(new File(pathPrefix + FILL_SUFFIX), rows);
     }
 
     public void add(long x, long y) {
         if (0 > x || x >= rows || 0 > y || y >= cols) {
             throw new IndexOutOfBoundsException();
         }
-        if (connection == null)
-            throw new IllegalStateException("Storage not initialized");
-        connection.add(x, y);
+        long start = offsets.get(x);
+        long filled = fill.get(x);
+        // the statements may have changed since they were counted, objects beyond the counted ones are dropped
+        if (filled < offsets.get(x + 1) - start) {
+            targets.set(start + filled, y);
+            fill.set(x, filled + 1);
+        }
     }
 
-    public Iterator rowIterator(final long row) {
-        return new Iterator() {
-            private long[] values = new long[10];
-            private int size, curr;
-            {
-                try (StatementIdIterator iter = connection.get(row, Long.MIN_VALUE, row, Long.MAX_VALUE)) {
-                    while (iter.hasNext()) {
-                        if (size >= values.length) {
-                            values = Arrays.copyOf(values, values.length * 2);
-                        }
-                        values[size++] = iter.pred;
-                        iter.next();
+    /**
+     * Packs the rows after all objects have been added, sorting them and dropping duplicate objects, e.g.
+     * from statements with different predicates, as well as the space of objects that were counted but not
+     * added.
+     */
+    public void complete() {
+        long[] buffer = new long[16];
+        long write = 0;
+        for (long row = 0; row < rows; row++) {
+            long start = offsets.get(row);
+            long length = fill.get(row);
+            offsets.set(row, write);
+            if (length == 0) {
+                continue;
+            }
+            if (length <= MAX_SORT_BUFFER) {
+                if (buffer.length < length) {
+                    buffer = new long[(int) Math.max(length, 2L * buffer.length)];
+                }
+                for (int idx = 0; idx < length; idx++) {
+                    buffer[idx] = targets.get(start + idx);
+                }
+                Arrays.sort(buffer, 0, (int) length);
+                for (int idx = 0; idx < length; idx++) {
+                    if (idx == 0 || buffer[idx] != buffer[idx - 1]) {
+                        targets.set(write++, buffer[idx]);
+                    }
+                }
+            } else {
+                sortInPlace(start, length);
+                for (long idx = start; idx < start + length; idx++) {
+                    long object = targets.get(idx);
+                    if (idx == start || object != targets.get(idx - 1)) {
+                        targets.set(write++, object);
                     }
                 }
             }
+        }
+        offsets.set(rows, write);
+        fill.delete();
+        fill = null;
+    }
 
-            @Override
-            public boolean hasNext() {
-                return curr < size;
-            }
+    /**
+     * Heap sort of a range of the objects that is too long to be copied to the heap.
+     */
+    private void sortInPlace(long start, long length) {
+        for (long idx = length / 2 - 1; idx >= 0; idx--) {
+            siftDown(start, idx, length);
+        }
+        for (long end = length - 1; end > 0; end--) {
+            long first = targets.get(start);
+            targets.set(start, targets.get(start + end));
+            targets.set(start + end, first);
+            siftDown(start, 0, end);
+        }
+    }
 
-            @Override
-            public long next() {
-                return values[curr++];
+    private void siftDown(long start, long pos, long end) {
+        while (true) {
+            long child = 2 * pos + 1;
+            if (child >= end) {
+                break;
             }
-
-            @Override
-            public long size() {
-                return size;
+            if (child + 1 < end && targets.get(start + child + 1) > targets.get(start + child)) {
+                child++;
             }
-        };
+            long value = targets.get(start + pos);
+            long childValue = targets.get(start + child);
+            if (childValue <= value) {
+                break;
+            }
+            targets.set(start + pos, childValue);
+            targets.set(start + child, value);
+            pos = child;
+        }
     }
 
+    /**
+     * Cursor that reads the objects of a row straight from the mapping of the file. The absolute reads of the
+     * mapping don't change it, so the cursors of different threads don't contend and nothing is copied.
+     */
+    private class MappedCursor extends MoleculeGraph.Cursor {
+        private long from, curr, to;
+
+        @Override
+        public void seek(long row) {
+            from = curr = offsets.get(row);
+            to = offsets.get(row + 1);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return curr < to;
+        }
+
+        @Override
+        public long next() {
+            return targets.get(curr++);
+        }
+
+        @Override
+        public long size() {
+            return to - from;
+        }
+    }
+
+    @Override
+    public MoleculeGraph.Cursor newCursor() {
+        return new MappedCursor();
+    }
+
+    @Override
+    public Iterator rowIterator(long row) {
+        MoleculeGraph.Cursor cursor = newCursor();
+        cursor.seek(row);
+        return cursor;
+    }
+
+    @Override
     public void shutDown() {
-        try {
-            if (connection != null) {
-                connection.commit();
-            }
-        } catch (TransactionException ex) {
-            LoggerFactory.getLogger(this.getClass()).error("Failed committing collection", ex);
-        } finally {
-            if (connection != null) {
-                connection.close();
-            }
-            collection.shutdown();
+        if (fill != null) {
+            fill.delete();
+            fill = null;
+        }
+        if (targets != null) {
+            targets.delete();
+            targets = null;
+        }
+        if (offsets != null) {
+            offsets.delete();
+            offsets = null;
         }
     }
 }
@@ -0,0 +1,133 @@
+package com.ontotext.trree.plugin.lucene;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded cache of the serialized values of entities shared by the threads building molecules. Most
+ * entities appear in a single molecule, so an entity is admitted only when it is seen for the second time,
+ * which is tracked approximately by a bit set. When the cache is full the entries that have been hit less
+ * than the others since the last eviction are dropped.
+ */
+public class ValueCache {
+	/**
+	 * A cached value, null if the entity isn't included in molecules.
+	 */
+	public static final class Entry {
+		public final String value;
+		volatile int hits;
+
+		Entry(String value) {
+			this.value = value;
+		}
+	}
+
+	private final int capacity;
+	private final ConcurrentHashMap<Long, Entry> entries;
+	// entities seen once, cleared on each eviction
+	private final AtomicLongArray seen;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public ValueCache(int capacity) {
+		this.capacity = capacity;
+		entries = new ConcurrentHashMap<Long, Entry>(capacity);
+		// 8 bits per entry keeps the false positives rare
+		seen = new AtomicLongArray(Math.max(capacity / 8, 1));
+	}
+
+	/**
+	 * @return the cached entry or null if the entity isn't cached
+	 */
+	public Entry get(long id) {
+		Entry entry = entries.get(id);
+		if (entry != null) {
+			entry.hits++;
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+		}
+		return entry;
+	}
+
+	/**
+	 * Offers the serialized value of an entity, null if it isn't included in molecules.
+	 */
+	public void put(long id, String value) {
+		if (!markSeen(id)) {
+			return;
+		}
+		if (entries.size() >= capacity) {
+			evict();
+		}
+		entries.put(id, new Entry(value));
+	}
+
+	/**
+	 * @return true if the entity has been seen before
+	 */
+	private boolean markSeen(long id) {
+		long h = id * 0x9E3779B97F4A7C15L;
+		int bit = (int) ((h >>> 32) % ((long) seen.length() * 64));
+		int word = bit >>> 6;
+		long mask = 1L << (bit & 63);
+		while (true) {
+			long current = seen.get(word);
+			if ((current & mask) != 0) {
+				return true;
+			}
+			if (seen.compareAndSet(word, current, current | mask)) {
+				return false;
+			}
+		}
+	}
+
+	private synchronized void evict() {
+		if (entries.size() < capacity) {
+			// another thread has already made room
+			return;
+		}
+		long total = 0;
+		for (Entry entry : entries.values()) {
+			total += entry.hits;
+		}
+		int average = (int) (total / Math.max(entries.size(), 1));
+		for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+			Entry entry = it.next();
+			if (entry.hits <= average) {
+				it.remove();
+			} else {
+				// age the survivors so that entities that used to be popular don't stay forever
+				entry.hits /= 2;
+			}
+		}
+		for (int word = 0; word < seen.length(); word++) {
+			seen.set(word, 0);
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Describes the hit rate for the logs.
+	 */
+	@Override
+	public String toString() {
+		long hitCount = hits.get();
+		long total = hitCount + misses.get();
+		return "hits: " + hitCount + ", misses: " + (total - hitCount) + ", hit rate: "
+				+ (total > 0 ? Math.round(hitCount * 100.0 / total) : 0) + "%, size: " + entries.size();
+	}
+}
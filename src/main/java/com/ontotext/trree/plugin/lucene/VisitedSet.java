@@ -0,0 +1,103 @@
+package com.ontotext.trree.plugin.lucene;
+
+import java.util.Arrays;
+
+/**
+ * Set of entity ids meant to be reused for many short-lived sets, e.g. the entities of consecutive molecules.
+ * The ids are kept in an open-addressing hash table whose slots are stamped with the generation of the set
+ * they belong to, so {@link #clear()} takes constant time instead of wiping the table. The ids can also be
+ * listed in the order they were added.
+ */
+public class VisitedSet {
+	private static final int INITIAL_CAPACITY = 64;
+	// tables that have grown larger are dropped on clear() so that a single huge set doesn't pin its memory
+	private static final int MAX_RETAINED = 1 << 20;
+
+	private long[] keys;
+	private int[] stamps;
+	private long[] order;
+	private int size;
+	private int generation = 1;
+
+	public VisitedSet() {
+		allocate(INITIAL_CAPACITY);
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		stamps = new int[capacity];
+		order = new long[capacity / 2];
+	}
+
+	public void clear() {
+		size = 0;
+		if (keys.length > MAX_RETAINED) {
+			allocate(INITIAL_CAPACITY);
+			generation = 1;
+		} else if (++generation == Integer.MAX_VALUE) {
+			Arrays.fill(stamps, 0);
+			generation = 1;
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the idx-th id in the order of addition.
+	 */
+	public long get(int idx) {
+		return order[idx];
+	}
+
+	public boolean contains(long id) {
+		int mask = keys.length - 1;
+		for (int slot = hash(id) & mask; stamps[slot] == generation; slot = (slot + 1) & mask) {
+			if (keys[slot] == id) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Adds an id to the set.
+	 *
+	 * @return true if the id was not in the set
+	 */
+	public boolean add(long id) {
+		int mask = keys.length - 1;
+		int slot = hash(id) & mask;
+		for (; stamps[slot] == generation; slot = (slot + 1) & mask) {
+			if (keys[slot] == id) {
+				return false;
+			}
+		}
+		if (size == order.length) {
+			// keep the load factor at most 1/2
+			grow();
+			return add(id);
+		}
+		keys[slot] = id;
+		stamps[slot] = generation;
+		order[size++] = id;
+		return true;
+	}
+
+	private void grow() {
+		long[] added = order;
+		int count = size;
+		allocate(keys.length * 2);
+		generation = 1;
+		size = 0;
+		for (int idx = 0; idx < count; idx++) {
+			add(added[idx]);
+		}
+	}
+
+	private static int hash(long id) {
+		long h = id * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+}
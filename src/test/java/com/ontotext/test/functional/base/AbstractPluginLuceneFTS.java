@@ -12,6 +12,7 @@ import org.eclipse.rdf4j.query.QueryLanguage;
 import org.eclipse.rdf4j.query.TupleQuery;
 import org.eclipse.rdf4j.query.TupleQueryResult;
 import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.repository.RepositoryException;
 import org.eclipse.rdf4j.repository.RepositoryResult;
 import org.junit.*;
 import org.junit.runner.RunWith;
@@ -19,10 +20,13 @@ import org.junit.runners.Parameterized;
 import org.junit.runners.Parameterized.Parameters;
 
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 @RunWith(Parameterized.class)
 public abstract class AbstractPluginLuceneFTS extends SingleRepositoryFunctionalTest {
@@ -104,6 +108,7 @@ public abstract class AbstractPluginLuceneFTS extends SingleRepositoryFunctional
 		setParam(Lucene.EXCLUDE_ENTITIES, "");
 		setParam(Lucene.EXCLUDE_PREDICATES, "");
 		setParam(Lucene.MOLECULE_SIZE, "0");
+		setParam(Lucene.TRACK_CHANGES, "no");
 		String customAnalyzer = getCustomAnalyzer();
 		if (customAnalyzer != null) {
 			setParam(Lucene.ANALYZER, customAnalyzer);
@@ -455,6 +460,76 @@ public abstract class AbstractPluginLuceneFTS extends SingleRepositoryFunctional
 		}
 	}
 
+	@Test
+	public void testQueryResultsLimit() {
+		setParam(Lucene.MOLECULE_SIZE, "3");
+		setParam(Lucene.INDEX, "uris,literals,bnodes");
+		setParam(Lucene.INCLUDE, "uris,literals");
+		createIndex("idx");
+
+		RepositoryConnection connection = null;
+		TupleQueryResult result = null;
+		try {
+			connection = getRepository().getConnection();
+
+			String sparql =
+					"SELECT ?s { <" + Lucene.NAMESPACE + "idx" + "> <" + Lucene.LIMIT + "> \"3\" . "
+							+ "?s <" + Lucene.NAMESPACE + "idx" + "> \"label\" }";
+
+			TupleQuery query = connection.prepareTupleQuery(QueryLanguage.SPARQL, sparql);
+
+			result = query.evaluate();
+
+			// the top hits of testQueryResultsOrder
+			Value[] expected = new Value[] { LABEL_PREDICATE, B2, A };
+			int index = 0;
+			while (result.hasNext()) {
+				Value val = result.next().getBinding("s").getValue();
+				assertTrue("Too many results", index < expected.length);
+				if (expected[index] instanceof BNode) {
+					assertTrue("Unexpected results order (BNode)", val instanceof BNode);
+				} else {
+					assertEquals("Unexpected results order", expected[index], val);
+				}
+				index++;
+			}
+			assertEquals(expected.length, index);
+		}
+		finally {
+			Utils.close(result);
+			Utils.close(connection);
+		}
+	}
+
+	@Test
+	public void testResultsCacheStats() {
+		setParam(Lucene.MOLECULE_SIZE, "0");
+		setParam(Lucene.INDEX, "literals");
+		setParam(Lucene.INCLUDE, "literals");
+		createIndex("idx");
+		testQuery("idx", "blan*", FIRST_BLANK_LABEL, SECOND_BLANK_LABEL);
+		// served from the cache
+		testQuery("idx", "  blan*", FIRST_BLANK_LABEL, SECOND_BLANK_LABEL);
+
+		RepositoryConnection connection = null;
+		TupleQueryResult result = null;
+		try {
+			connection = getRepository().getConnection();
+
+			String sparql = "SELECT ?stats { <" + Lucene.NAMESPACE + "idx> <" + Lucene.STATS + "> ?stats }";
+			result = connection.prepareTupleQuery(QueryLanguage.SPARQL, sparql).evaluate();
+
+			assertTrue(result.hasNext());
+			String stats = result.next().getBinding("stats").getValue().stringValue();
+			assertTrue(stats, stats.contains("\"cacheHits\":"));
+			assertTrue(stats, !stats.contains("\"cacheHits\":\"0\""));
+		}
+		finally {
+			Utils.close(result);
+			Utils.close(connection);
+		}
+	}
+
 	@Test
 	public void testScored() {
 		setParam(Lucene.MOLECULE_SIZE, "3");
@@ -490,6 +565,92 @@ public abstract class AbstractPluginLuceneFTS extends SingleRepositoryFunctional
 		}
 	}
 
+	@Test
+	public void testScoresOfNestedPatterns() {
+		setParam(Lucene.MOLECULE_SIZE, "0");
+		setParam(Lucene.INDEX, "literals");
+		setParam(Lucene.INCLUDE, "literals");
+		createIndex("first");
+		createIndex("second");
+
+		Map<Value, String> firstScores = getScores("?x <" + Lucene.NAMESPACE + "first> \"label\" .", "x");
+		Map<Value, String> secondScores = getScores("?y <" + Lucene.NAMESPACE + "second> \"alabala OR funky\" .", "y");
+		assertEquals(4, firstScores.size());
+		assertEquals(2, secondScores.size());
+
+		RepositoryConnection connection = null;
+		TupleQueryResult result = null;
+		try {
+			connection = getRepository().getConnection();
+
+			String sparql = "SELECT * {"
+					+ "?x <" + Lucene.NAMESPACE + "first> \"label\" ."
+					+ "?y <" + Lucene.NAMESPACE + "second> \"alabala OR funky\" ."
+					+ "?x <" + Lucene.SCORE + "> ?xScore ."
+					+ "?y <" + Lucene.SCORE + "> ?yScore ."
+					+ "FILTER (?x != ?y) }";
+			result = connection.prepareTupleQuery(QueryLanguage.SPARQL, sparql).evaluate();
+
+			int count = 0;
+			while (result.hasNext()) {
+				BindingSet bs = result.next();
+				// each variable gets the score of its own pattern and index
+				assertEquals(firstScores.get(bs.getValue("x")), bs.getValue("xScore").stringValue());
+				assertEquals(secondScores.get(bs.getValue("y")), bs.getValue("yScore").stringValue());
+				count++;
+			}
+			// the funky label is found by both queries
+			assertEquals(4 * 2 - 1, count);
+		}
+		finally {
+			Utils.close(result);
+			Utils.close(connection);
+		}
+	}
+
+	@Test
+	public void testBoundSubjectLookup() {
+		setParam(Lucene.MOLECULE_SIZE, "1");
+		setParam(Lucene.INDEX, "uris");
+		createIndex("idx");
+
+		Map<Value, String> scores = getScores("?x <" + Lucene.NAMESPACE + "idx> \"label\" .", "x");
+		assertEquals(3, scores.size());
+
+		// the subjects are bound before the index query, which checks each of them directly
+		Map<Value, String> boundScores = getScores("VALUES ?x { <" + A + "> <" + C + "> <" + LINK_PREDICATE
+				+ "> } ?x <" + Lucene.NAMESPACE + "idx> \"label\" .", "x");
+		assertEquals(2, boundScores.size());
+		assertEquals(scores.get(A), boundScores.get(A));
+		assertEquals(scores.get(C), boundScores.get(C));
+
+		Map<Value, String> missing = getScores("VALUES ?x { <" + B + "> } ?x <" + Lucene.NAMESPACE
+				+ "idx> \"pretty\" .", "x");
+		assertTrue(missing.isEmpty());
+	}
+
+	private Map<Value, String> getScores(String pattern, String variable) {
+		RepositoryConnection connection = null;
+		TupleQueryResult result = null;
+		try {
+			connection = getRepository().getConnection();
+
+			String sparql = "SELECT * { " + pattern + " ?" + variable + " <" + Lucene.SCORE + "> ?score . }";
+			result = connection.prepareTupleQuery(QueryLanguage.SPARQL, sparql).evaluate();
+
+			Map<Value, String> scores = new HashMap<Value, String>();
+			while (result.hasNext()) {
+				BindingSet bs = result.next();
+				scores.put(bs.getValue(variable), bs.getValue("score").stringValue());
+			}
+			return scores;
+		}
+		finally {
+			Utils.close(result);
+			Utils.close(connection);
+		}
+	}
+
 	@Test
 	public void testIncludeExclude() {
 		setParam(Lucene.MOLECULE_SIZE, "3");
@@ -563,6 +724,157 @@ public abstract class AbstractPluginLuceneFTS extends SingleRepositoryFunctional
 		testQuery("idx", "pretty AND informative", C);
 	}
 
+	@Test
+	public void testTrackChanges() {
+		setParam(Lucene.MOLECULE_SIZE, "1");
+		setParam(Lucene.INDEX, "uris");
+		setParam(Lucene.TRACK_CHANGES, "yes");
+		createIndex("idx");
+		testQuery("idx", "zebra");
+
+		Literal zebra = F.createLiteral("zebra");
+		RepositoryConnection connection = null;
+		try {
+			connection = getRepository().getConnection();
+			connection.begin();
+			connection.add(C, LABEL_PREDICATE, zebra);
+			connection.commit();
+			testQuery("idx", "zebra", C);
+
+			connection.begin();
+			connection.remove(C, LABEL_PREDICATE, zebra);
+			connection.commit();
+			testQuery("idx", "zebra");
+
+			// ex:a reaches the label of _:b1 through the blank node without spending its single hop
+			connection.begin();
+			connection.prepareUpdate(QueryLanguage.SPARQL, "insert { ?b <" + LABEL_PREDICATE + "> \"okapi\" }"
+					+ " where { <" + A + "> <" + LINK_PREDICATE + "> ?b }").execute();
+			connection.commit();
+			testQuery("idx", "okapi", A);
+		} finally {
+			Utils.close(connection);
+		}
+	}
+
+	@Test
+	public void testAddToIndexReplacesDocument() {
+		setParam(Lucene.MOLECULE_SIZE, "1");
+		setParam(Lucene.INDEX, "uris");
+		createIndex("idx");
+		addToIndex("idx", A);
+		addToIndex("idx", A);
+		testQuery("idx", "funky", A);
+	}
+
+	@Test
+	public void testBatchedAddToIndex() {
+		setParam(Lucene.MOLECULE_SIZE, "1");
+		setParam(Lucene.INDEX, "uris");
+		createIndex("idx");
+
+		Literal zebra = F.createLiteral("zebra");
+		IRI addToIndex = Lucene.ADD_TO_INDEX;
+		IRI index = vf.createIRI(Lucene.NAMESPACE + "idx");
+		RepositoryConnection connection = null;
+		try {
+			connection = getRepository().getConnection();
+			connection.begin();
+			connection.add(C, LABEL_PREDICATE, zebra);
+			connection.add(index, addToIndex, C);
+			connection.add(index, addToIndex, A);
+			// passed twice, indexed once
+			connection.add(index, addToIndex, C);
+
+			// visible to the queries of the same transaction
+			SparqlHelper helper = new SparqlHelper(connection);
+			helper.tupleQuery("SELECT ?s { ?s <" + Lucene.NAMESPACE + "idx> \"zebra\" }", false);
+			helper.verify("s", C);
+			helper.verifyNoBindingsRemaining();
+			connection.commit();
+		} finally {
+			Utils.close(connection);
+		}
+		testQuery("idx", "zebra", C);
+		testQuery("idx", "funky", A);
+	}
+
+	@Test
+	public void testBatchedAddToMissingIndexFails() {
+		if (!useUpdate) {
+			// only updates are batched
+			return;
+		}
+		RepositoryConnection connection = null;
+		try {
+			connection = getRepository().getConnection();
+			connection.begin();
+			connection.add(vf.createIRI(Lucene.NAMESPACE + "missing"), Lucene.ADD_TO_INDEX, A);
+			try {
+				connection.commit();
+				fail("Adding to a missing index must fail the transaction");
+			} catch (RepositoryException e) {
+				// expected
+			}
+		} finally {
+			if (connection != null && connection.isActive()) {
+				connection.rollback();
+			}
+			Utils.close(connection);
+		}
+	}
+
+	@Test
+	public void testAsyncCreateIndex() throws InterruptedException {
+		setParam(Lucene.MOLECULE_SIZE, "0");
+		setParam(Lucene.INDEX, "literals");
+		setParam(Lucene.INCLUDE, "literals");
+		assertTrue(eval(
+				vf.createIRI(Lucene.NAMESPACE + "idx"),
+				Lucene.CREATE_INDEX,
+				vf.createLiteral("async")));
+
+		String status = getJobStatus("idx");
+		for (int i = 0; i < 300 && status.contains("\"state\":\"running\""); i++) {
+			Thread.sleep(100);
+			status = getJobStatus("idx");
+		}
+		assertTrue(status, status.contains("\"state\":\"done\""));
+		testQuery("idx", "blan*", FIRST_BLANK_LABEL, SECOND_BLANK_LABEL);
+
+		// the unbound subject lists the jobs by index
+		RepositoryConnection connection = null;
+		try {
+			connection = getRepository().getConnection();
+
+			SparqlHelper helper = new SparqlHelper(connection);
+			helper.tupleQuery("SELECT ?index { ?index <" + Lucene.JOBS + "> ?status }", false);
+			helper.verify("index", vf.createIRI(Lucene.NAMESPACE + "idx"));
+			helper.verifyNoBindingsRemaining();
+		} finally {
+			Utils.close(connection);
+		}
+	}
+
+	private String getJobStatus(String indexName) {
+		RepositoryConnection connection = null;
+		TupleQueryResult result = null;
+		try {
+			connection = getRepository().getConnection();
+
+			String sparql = "SELECT ?status { <" + Lucene.NAMESPACE + indexName + "> <" + Lucene.JOB_STATUS
+					+ "> ?status }";
+			result = connection.prepareTupleQuery(QueryLanguage.SPARQL, sparql).evaluate();
+
+			assertTrue(result.hasNext());
+			return result.next().getBinding("status").getValue().stringValue();
+		}
+		finally {
+			Utils.close(result);
+			Utils.close(connection);
+		}
+	}
+
 	@Test
 	public void testStackoverflowErrorBBC84() {
 		setParam(Lucene.MOLECULE_SIZE, "1");
@@ -0,0 +1,138 @@
+package com.ontotext.trree.plugin.lucene;
+
+import org.apache.lucene.search.Query;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the eviction of the lock-free cache of parsed queries and its use from several threads.
+ */
+public class TestConcurrentCache {
+	private static final int THREADS = 8;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testEvictionSparesReadEntries() {
+		ConcurrentCache<Integer, String> cache = new ConcurrentCache<Integer, String>(8);
+		for (int key = 0; key < 8; key++) {
+			cache.put(key, "v" + key);
+		}
+		assertEquals("v1", cache.get(1));
+		assertEquals("v5", cache.get(5));
+		cache.put(8, "v8");
+		// a quarter of the cache is freed
+		assertEquals(6, cache.size());
+		assertEquals("v1", cache.get(1));
+		assertEquals("v5", cache.get(5));
+		assertEquals(4, cache.getHits());
+		assertEquals(0, cache.getMisses());
+	}
+
+	@Test
+	public void testEvictionTakesReadEntriesWhenNeeded() {
+		ConcurrentCache<Integer, String> cache = new ConcurrentCache<Integer, String>(4);
+		for (int key = 0; key < 4; key++) {
+			cache.put(key, "v" + key);
+			cache.get(key);
+		}
+		cache.put(4, "v4");
+		assertEquals(3, cache.size());
+		// the entries are no longer marked as read, the next eviction takes any of them
+		for (int key = 5; key < 7; key++) {
+			cache.put(key, "v" + key);
+		}
+		assertTrue(cache.size() <= 4);
+		assertNull(cache.get(-1));
+		assertEquals(1, cache.getMisses());
+	}
+
+	@Test
+	public void testConcurrentAccess() throws Exception {
+		final int maxSize = 100;
+		final ConcurrentCache<Integer, Integer> cache = new ConcurrentCache<Integer, Integer>(maxSize);
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		try {
+			List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+			for (int thread = 0; thread < THREADS; thread++) {
+				final Random random = new Random(thread);
+				results.add(executor.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() {
+						for (int round = 0; round < 100000; round++) {
+							int key = random.nextInt(1000);
+							Integer value = cache.get(key);
+							if (value == null) {
+								cache.put(key, key * 2);
+							} else if (value != key * 2) {
+								return false;
+							}
+						}
+						return true;
+					}
+				}));
+			}
+			for (Future<Boolean> result : results) {
+				assertTrue(result.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+		// the threads skip the eviction while another one is evicting, so the cache may be a bit over
+		assertTrue("size " + cache.size(), cache.size() <= maxSize + THREADS);
+		assertEquals(THREADS * 100000L, cache.getHits() + cache.getMisses());
+	}
+
+	@Test
+	public void testConcurrentParsing() throws Exception {
+		final LuceneIndex index = TestLuceneIterator.createIndex(folder.getRoot());
+		try {
+			final String[] queries = { "word", "word AND even", "wor*", "\"word even\"", "odd OR even" };
+			final Query[] expected = new Query[queries.length];
+			for (int idx = 0; idx < queries.length; idx++) {
+				expected[idx] = index.parse(queries[idx]);
+			}
+			ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+			try {
+				List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+				for (int thread = 0; thread < THREADS; thread++) {
+					results.add(executor.submit(new Callable<Boolean>() {
+						@Override
+						public Boolean call() throws Exception {
+							for (int round = 0; round < 1000; round++) {
+								int idx = round % queries.length;
+								// the same parsed query, also for an equivalent query string
+								Query parsed = index.parse(round % 2 == 0 ? queries[idx] : " " + queries[idx]);
+								if (!expected[idx].equals(parsed)) {
+									return false;
+								}
+							}
+							return true;
+						}
+					}));
+				}
+				for (Future<Boolean> result : results) {
+					assertTrue(result.get());
+				}
+			} finally {
+				executor.shutdown();
+			}
+		} finally {
+			index.shutDown();
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package com.ontotext.trree.plugin.lucene;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the rows of the in-memory molecule graph, also when the two passes over the statements don't see
+ * the same statements.
+ */
+public class TestCsrGraph {
+	@Test
+	public void testRowsAreSortedWithoutDuplicates() {
+		long[][] edges = { { 1, 3 }, { 1, 2 }, { 1, 3 }, { 3, 1 }, { 2, 4 }, { 1, 4 } };
+		CsrGraph graph = build(5, edges, edges);
+		assertRow(graph, 0);
+		assertRow(graph, 1, 2, 3, 4);
+		assertRow(graph, 2, 4);
+		assertRow(graph, 3, 1);
+		assertRow(graph, 4);
+	}
+
+	@Test
+	public void testUncountedObjectsAreDropped() {
+		long[][] counted = { { 1, 2 }, { 2, 3 }, { 2, 4 } };
+		// row 2 gets more objects in the second pass than counted, row 1 fewer
+		long[][] added = { { 2, 3 }, { 2, 4 }, { 2, 1 }, { 3, 2 } };
+		CsrGraph graph = build(5, counted, added);
+		assertRow(graph, 1);
+		assertRow(graph, 2, 3, 4);
+		// the row had no space counted for it
+		assertRow(graph, 3);
+	}
+
+	@Test
+	public void testExtraObjectsDontSpillIntoOtherRows() {
+		long[][] counted = { { 1, 2 }, { 1, 3 }, { 2, 1 } };
+		// row 1 is filled partially before row 2 overflows
+		long[][] added = { { 1, 2 }, { 2, 1 }, { 2, 4 }, { 2, 3 }, { 1, 3 } };
+		CsrGraph graph = build(5, counted, added);
+		assertRow(graph, 1, 2, 3);
+		assertRow(graph, 2, 1);
+	}
+
+	private static CsrGraph build(long rows, long[][] counted, long[][] added) {
+		CsrGraph graph = new CsrGraph(rows);
+		for (long[] edge : counted) {
+			graph.count(edge[0]);
+		}
+		graph.allocate();
+		for (long[] edge : added) {
+			graph.add(edge[0], edge[1]);
+		}
+		graph.complete();
+		return graph;
+	}
+
+	static void assertRow(MoleculeGraph graph, long row, long... expected) {
+		MoleculeGraph.Cursor cursor = graph.newCursor();
+		cursor.seek(row);
+		List<Long> objects = new ArrayList<Long>();
+		while (cursor.hasNext()) {
+			objects.add(cursor.next());
+		}
+		List<Long> expectedObjects = new ArrayList<Long>();
+		for (long object : expected) {
+			expectedObjects.add(object);
+		}
+		assertEquals("row " + row, expectedObjects, objects);
+		assertEquals(expected.length, cursor.size());
+	}
+}
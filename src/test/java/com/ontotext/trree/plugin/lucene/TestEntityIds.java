@@ -0,0 +1,108 @@
+package com.ontotext.trree.plugin.lucene;
+
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the columns of entity ids written for the segments of an index and that the segments whose column
+ * can't be prepared are counted and still resolve their ids.
+ */
+public class TestEntityIds {
+	private static final long[] IDS = { 5, 7, 9 };
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File dataDir;
+	private Directory directory;
+	private IndexReader reader;
+
+	@Before
+	public void setUp() throws IOException {
+		dataDir = folder.getRoot();
+		directory = FSDirectory.open(dataDir);
+		IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(Version.LUCENE_36,
+				new WhitespaceAnalyzer(Version.LUCENE_36)));
+		try {
+			EntityIdField field = new EntityIdField(true);
+			for (long id : IDS) {
+				Document document = new Document();
+				field.setValue(id);
+				document.add(field.getField());
+				writer.addDocument(document);
+			}
+			writer.commit();
+		} finally {
+			writer.close();
+		}
+		reader = IndexReader.open(directory);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		reader.close();
+		directory.close();
+	}
+
+	@Test
+	public void testColumnIsWritten() throws IOException {
+		EntityIds ids = new EntityIds(reader, dataDir, LuceneIndex.FORMAT_CURRENT);
+		assertTrue(getColumn().isFile());
+		assertEquals(0, ids.getLazySegmentCount());
+		assertIds(ids);
+	}
+
+	@Test
+	public void testFailedColumnIsCountedAndRetried() throws IOException {
+		// a directory in place of the column can't be mapped
+		File column = getColumn();
+		assertTrue(column.mkdir());
+		EntityIds ids = new EntityIds(reader, dataDir, LuceneIndex.FORMAT_CURRENT);
+		assertEquals(1, ids.getLazySegmentCount());
+		assertIds(ids);
+
+		// the column is written when the reader is reopened
+		assertTrue(column.delete());
+		ids = new EntityIds(reader, dataDir, LuceneIndex.FORMAT_CURRENT, ids);
+		assertTrue(column.isFile());
+		assertEquals(0, ids.getLazySegmentCount());
+		assertIds(ids);
+	}
+
+	@Test
+	public void testLegacyFormatHasNoColumn() throws IOException {
+		EntityIds ids = new EntityIds(reader, dataDir, LuceneIndex.FORMAT_LEGACY);
+		assertEquals(1, ids.getLazySegmentCount());
+		assertIds(ids);
+	}
+
+	private File getColumn() {
+		IndexReader segment = reader.getSequentialSubReaders()[0];
+		return new File(dataDir, ((SegmentReader) segment).getSegmentName() + EntityIds.COLUMN_EXTENSION);
+	}
+
+	private void assertIds(EntityIds ids) throws IOException {
+		IndexReader segment = reader.getSequentialSubReaders()[0];
+		for (int doc = 0; doc < IDS.length; doc++) {
+			assertEquals(IDS[doc], ids.forSegment(segment).get(segment, doc));
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package com.ontotext.trree.plugin.lucene;
+
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TotalHitCountCollector;
+import org.apache.lucene.search.WildcardQuery;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the hit count estimates on an index whose matches are skewed towards its end, as the documents of
+ * entities added last are, which a sample taken from the beginning of the index would miss.
+ */
+public class TestHitCountEstimator {
+	private static final int DOCUMENTS = 20000;
+	// the documents in the last fifth of the index have the tail term
+	private static final int TAIL = DOCUMENTS - DOCUMENTS / 5;
+
+	private RAMDirectory directory;
+	private IndexReader reader;
+	private IndexSearcher searcher;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = new RAMDirectory();
+		IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_36,
+				new WhitespaceAnalyzer(Version.LUCENE_36));
+		IndexWriter writer = new IndexWriter(directory, config);
+		try {
+			for (int doc = 0; doc < DOCUMENTS; doc++) {
+				StringBuilder text = new StringBuilder("common term" + (doc % 100));
+				if (doc >= TAIL) {
+					text.append(" tail");
+				}
+				if (doc % 10 == 0) {
+					text.append(" tenth");
+				}
+				Document document = new Document();
+				document.add(new Field("text", text.toString(), Field.Store.NO, Field.Index.ANALYZED));
+				writer.addDocument(document);
+				if (doc % 7000 == 6999) {
+					// several segments
+					writer.commit();
+				}
+			}
+			writer.commit();
+		} finally {
+			writer.close();
+		}
+		reader = IndexReader.open(directory);
+		searcher = new IndexSearcher(reader);
+		assertTrue(searcher.getSubReaders().length > 1);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		searcher.close();
+		reader.close();
+		directory.close();
+	}
+
+	@Test
+	public void testTermQueryIsExact() throws IOException {
+		HitCountEstimator estimator = new HitCountEstimator(1000);
+		assertEquals(DOCUMENTS - TAIL, estimator.estimate(searcher, new TermQuery(new Term("text", "tail"))));
+		assertEquals(0, estimator.estimate(searcher, new TermQuery(new Term("text", "missing"))));
+	}
+
+	@Test
+	public void testPrefixAndWildcardSumTerms() throws IOException {
+		HitCountEstimator estimator = new HitCountEstimator(1000);
+		// term1 and term10 to term19
+		assertEquals(11 * DOCUMENTS / 100, estimator.estimate(searcher, new PrefixQuery(new Term("text",
+				"term1"))));
+		// term15 to term95
+		assertEquals(9 * DOCUMENTS / 100, estimator.estimate(searcher, new WildcardQuery(new Term("text",
+				"term?5"))));
+		// all of the terms match all of the documents
+		assertEquals(DOCUMENTS, estimator.estimate(searcher, new PrefixQuery(new Term("text", ""))));
+	}
+
+	@Test
+	public void testSampleOfSkewedMatches() throws IOException {
+		BooleanQuery query = new BooleanQuery();
+		query.add(new TermQuery(new Term("text", "tail")), Occur.MUST);
+		query.add(new TermQuery(new Term("text", "tenth")), Occur.MUST);
+		checkEstimate(query, 0.25);
+
+		BooleanQuery tailOnly = new BooleanQuery();
+		tailOnly.add(new TermQuery(new Term("text", "common")), Occur.MUST);
+		tailOnly.add(new TermQuery(new Term("text", "tail")), Occur.MUST);
+		checkEstimate(tailOnly, 0.1);
+	}
+
+	@Test
+	public void testWholeIndexIsExact() throws IOException {
+		BooleanQuery query = new BooleanQuery();
+		query.add(new TermQuery(new Term("text", "tail")), Occur.MUST);
+		query.add(new TermQuery(new Term("text", "tenth")), Occur.MUST);
+		assertEquals(count(query), new HitCountEstimator(DOCUMENTS).estimate(searcher, query));
+	}
+
+	private void checkEstimate(Query query, double tolerance) throws IOException {
+		long actual = count(query);
+		long estimate = new HitCountEstimator(1000).estimate(searcher, query);
+		assertTrue("estimate " + estimate + " of " + actual, Math.abs(estimate - actual) <= tolerance * actual);
+	}
+
+	private long count(Query query) throws IOException {
+		TotalHitCountCollector collector = new TotalHitCountCollector();
+		searcher.search(query, collector);
+		return collector.getTotalHits();
+	}
+}
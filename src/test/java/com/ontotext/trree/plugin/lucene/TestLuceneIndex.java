@@ -0,0 +1,316 @@
+package com.ontotext.trree.plugin.lucene;
+
+import org.apache.lucene.index.IndexReader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the searches of an index with several segments.
+ */
+public class TestLuceneIndex {
+	private static final String[] QUERIES = { "word", "even", "word AND odd", "wor*", "missing" };
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private LuceneIndex index;
+	private ExecutorService executor;
+
+	@Before
+	public void setUp() throws Exception {
+		index = TestLuceneIterator.createIndex(folder.getRoot());
+		// each commit adds a segment
+		TestLuceneIterator.addDocuments(index, 1, 2000);
+		TestLuceneIterator.addDocuments(index, 2000, 3000);
+		TestLuceneIterator.addDocuments(index, 3000, 3500);
+		executor = Executors.newFixedThreadPool(4);
+		index.setSearchExecutor(executor);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		executor.shutdown();
+		index.shutDown();
+	}
+
+	@Test
+	public void testParallelSearch() throws Exception {
+		IndexSnapshot snapshot = index.acquire();
+		try {
+			assertTrue(snapshot.getSearcher().getSubReaders().length > 1);
+		} finally {
+			index.release(snapshot);
+		}
+		for (String query : QUERIES) {
+			for (int limit : new int[] { 0, 1, 10, 2500 }) {
+				index.setParallelSearch(false);
+				HitList serial = search(query, limit);
+				index.setParallelSearch(true);
+				assertHits(query + " limit " + limit, serial, search(query, limit));
+			}
+		}
+	}
+
+	@Test
+	public void testRefreshSharesUnchangedSegments() throws Exception {
+		IndexSnapshot before = index.acquire();
+		IndexReader[] segments;
+		EntityIds.Segment[] ids;
+		try {
+			segments = before.getSearcher().getSubReaders();
+			ids = new EntityIds.Segment[segments.length];
+			for (int idx = 0; idx < segments.length; idx++) {
+				ids[idx] = before.getEntityIds().forSegment(segments[idx]);
+			}
+		} finally {
+			index.release(before);
+		}
+
+		TestLuceneIterator.addDocuments(index, 3500, 3600);
+		IndexSnapshot after = index.acquire();
+		try {
+			assertTrue(after.getGeneration() > before.getGeneration());
+			assertEquals(before.getReader().numDocs() + 100, after.getReader().numDocs());
+			IndexReader[] reopened = after.getSearcher().getSubReaders();
+			assertEquals(segments.length + 1, reopened.length);
+			// the segments that haven't changed keep their readers and entity ids
+			for (int idx = 0; idx < segments.length; idx++) {
+				assertSame(segments[idx].getCoreCacheKey(), reopened[idx].getCoreCacheKey());
+				assertSame(ids[idx], after.getEntityIds().forSegment(reopened[idx]));
+			}
+			assertEquals(0, after.getEntityIds().getLazySegmentCount());
+		} finally {
+			index.release(after);
+		}
+	}
+
+	@Test
+	public void testSnapshotSurvivesRefresh() throws Exception {
+		IndexSnapshot before = index.acquire();
+		try {
+			int hits = count(before, "word");
+			TestLuceneIterator.addDocuments(index, 3500, 3600);
+			// the pinned snapshot still sees the documents it was opened with
+			assertEquals(hits, count(before, "word"));
+
+			IndexSnapshot after = index.acquire();
+			try {
+				assertEquals(hits + 100, count(after, "word"));
+			} finally {
+				index.release(after);
+			}
+			assertTrue(before.getReader().getRefCount() > 0);
+		} finally {
+			index.release(before);
+		}
+		// closed once the last query has released it
+		assertEquals(0, before.getReader().getRefCount());
+		IndexSnapshot current = index.acquire();
+		try {
+			assertEquals(2, current.getReader().getRefCount());
+		} finally {
+			index.release(current);
+		}
+	}
+
+	@Test
+	public void testRetiredBuildDrains() throws Exception {
+		File indexDir = folder.newFolder("rebuilt");
+		File oldDir = LuceneIndex.nextDataDir(indexDir);
+		assertTrue(oldDir.mkdir());
+		LuceneIndex old = TestLuceneIterator.createIndex(oldDir);
+		TestLuceneIterator.addDocuments(old, 1, 100);
+		IndexSnapshot pinned = old.acquire();
+		try {
+			File newDir = LuceneIndex.nextDataDir(indexDir);
+			assertTrue(newDir.mkdir());
+			LuceneIndex rebuilt = TestLuceneIterator.createIndex(newDir);
+			try {
+				TestLuceneIterator.addDocuments(rebuilt, 1, 200);
+				assertEquals(newDir, LuceneIndex.findDataDir(indexDir));
+				old.retire();
+				// a query that started before the swap still reads the previous build
+				assertTrue(oldDir.exists());
+				assertEquals(99, count(pinned, "word"));
+				IndexSnapshot snapshot = rebuilt.acquire();
+				try {
+					assertEquals(199, count(snapshot, "word"));
+				} finally {
+					rebuilt.release(snapshot);
+				}
+			} finally {
+				rebuilt.shutDown();
+			}
+		} finally {
+			old.release(pinned);
+		}
+		// deleted by the last query
+		assertFalse(oldDir.exists());
+	}
+
+	@Test
+	public void testStaleBuildsDeleted() throws Exception {
+		File indexDir = folder.newFolder("stale");
+		// the files of the old layout and a build left by a shutdown before the queries were done
+		assertTrue(new File(indexDir, "index.properties").createNewFile());
+		File stale = LuceneIndex.nextDataDir(indexDir);
+		assertTrue(stale.mkdir());
+		TestLuceneIterator.createIndex(stale).shutDown();
+		File latest = LuceneIndex.nextDataDir(indexDir);
+		assertTrue(latest.mkdir());
+		TestLuceneIterator.createIndex(latest).shutDown();
+
+		LuceneIndex.deleteStaleDataDirs(indexDir);
+		assertFalse(stale.exists());
+		assertFalse(new File(indexDir, "index.properties").exists());
+		assertTrue(latest.exists());
+		assertEquals(latest, LuceneIndex.findDataDir(indexDir));
+	}
+
+	private int count(IndexSnapshot snapshot, String query) throws Exception {
+		LuceneResultsCollector collector = new LuceneResultsCollector(snapshot.getEntityIds());
+		index.search(snapshot.getSearcher(), index.parse(query), null, collector);
+		return collector.getResults().size();
+	}
+
+	@Test
+	public void testScratchReleasedAfterFailedSearch() throws Exception {
+		// the hits collected before the failure remain available
+		assertEquals(100, failSearch().size());
+		assertFalse(isScratchInUse());
+
+		// the partial collectors use the buffers of the search threads
+		ExecutorService single = Executors.newSingleThreadExecutor();
+		try {
+			index.setSearchExecutor(single);
+			index.setParallelSearch(true);
+			failSearch();
+			assertFalse(isScratchInUse());
+			assertFalse(single.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+					return isScratchInUse();
+				}
+			}).get());
+		} finally {
+			single.shutdown();
+		}
+	}
+
+	/**
+	 * Searches with entity ids that fail after 100 hits of a segment have been collected.
+	 *
+	 * @return the hits collected before the failure
+	 */
+	private HitList failSearch() throws Exception {
+		IndexSnapshot snapshot = index.acquire();
+		try {
+			EntityIds failing = new EntityIds(snapshot.getReader(), folder.getRoot(), index.getFormat()) {
+				@Override
+				public Segment forSegment(IndexReader segment) {
+					return new Segment() {
+						private int count;
+
+						@Override
+						public int get(IndexReader reader, int doc) throws IOException {
+							if (++count > 100) {
+								throw new IOException("Failing on purpose");
+							}
+							return doc + 1;
+						}
+					};
+				}
+			};
+			LuceneResultsCollector collector = new LuceneResultsCollector(failing);
+			try {
+				index.search(snapshot.getSearcher(), index.parse("word"), null, collector);
+				fail("The search must fail");
+			} catch (IOException ex) {
+				// expected
+			}
+			return collector.getResults();
+		} finally {
+			index.release(snapshot);
+		}
+	}
+
+	/**
+	 * Checks if the scratch buffers of the collectors of the current thread are taken.
+	 */
+	private static boolean isScratchInUse() throws Exception {
+		Field scratchField = LuceneResultsCollector.class.getDeclaredField("scratch");
+		scratchField.setAccessible(true);
+		Object scratch = ((ThreadLocal<?>) scratchField.get(null)).get();
+		Field inUse = scratch.getClass().getDeclaredField("inUse");
+		inUse.setAccessible(true);
+		return inUse.getBoolean(scratch);
+	}
+
+	@Test
+	public void testDirectories() throws Exception {
+		for (String directory : new String[] { LuceneIndex.DIRECTORY_NIO, LuceneIndex.DIRECTORY_MMAP,
+				LuceneIndex.DIRECTORY_RAM }) {
+			File dataDir = folder.newFolder(directory);
+			LuceneIndex other = TestLuceneIterator.createIndex(dataDir);
+			other.setDirectory(directory);
+			other.writeProperties();
+			TestLuceneIterator.addDocuments(other, 1, 2000);
+			TestLuceneIterator.addDocuments(other, 2000, 3000);
+			TestLuceneIterator.addDocuments(other, 3000, 3500);
+			other.shutDown();
+
+			// the directory is stored with the index
+			other = new LuceneIndex("test", dataDir);
+			try {
+				assertEquals(directory, other.getDirectory());
+				for (String query : QUERIES) {
+					assertHits(directory + " " + query, search(index, query, 0), search(other, query, 0));
+				}
+				// the documents added later are seen, also by a copy of the index in memory
+				TestLuceneIterator.addDocuments(other, 3500, 3600);
+				assertEquals(directory, search(index, "word", 0).size() + 100, search(other, "word", 0).size());
+			} finally {
+				other.shutDown();
+			}
+		}
+	}
+
+	private HitList search(String query, int limit) throws Exception {
+		return search(index, query, limit);
+	}
+
+	private static HitList search(LuceneIndex index, String query, int limit) throws Exception {
+		IndexSnapshot snapshot = index.acquire();
+		try {
+			LuceneResultsCollector collector = new LuceneResultsCollector(snapshot.getEntityIds(), limit);
+			index.search(snapshot.getSearcher(), index.parse(query), null, collector);
+			return collector.getResults();
+		} finally {
+			index.release(snapshot);
+		}
+	}
+
+	private static void assertHits(String message, HitList expected, HitList actual) {
+		assertEquals(message, expected.size(), actual.size());
+		for (int idx = 0; idx < expected.size(); idx++) {
+			assertEquals(message, expected.id(idx), actual.id(idx));
+			assertEquals(message, expected.score(idx), actual.score(idx), 0);
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package com.ontotext.trree.plugin.lucene;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.search.Query;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a streaming iterator produces the same hits in the same order as a single search collecting
+ * all of them, across windows that end among hits with equal scores, and that it releases its snapshot.
+ */
+public class TestLuceneIterator {
+	// more than the first two windows
+	private static final int DOCUMENTS = LuceneIterator.FIRST_WINDOW * (1 + LuceneIterator.WINDOW_GROWTH) + 500;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private LuceneIndex index;
+
+	@Before
+	public void setUp() throws Exception {
+		index = createIndex(folder.getRoot());
+		addDocuments(index, 1, DOCUMENTS + 1);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		index.shutDown();
+	}
+
+	@Test
+	public void testAllWindows() throws Exception {
+		HitList expected = searchAll("word");
+		assertEquals(DOCUMENTS, expected.size());
+		checkIterator(expected, 0);
+	}
+
+	@Test
+	public void testLimit() throws Exception {
+		HitList expected = searchAll("word");
+		checkIterator(expected, LuceneIterator.FIRST_WINDOW + 10);
+	}
+
+	@Test
+	public void testCloseReleasesSnapshot() throws Exception {
+		IndexSnapshot snapshot = index.acquire();
+		int refs = snapshot.getReader().getRefCount();
+		LuceneIterator iter = new LuceneIterator(index, snapshot, index.parse("word"), 0);
+		assertTrue(iter.next());
+		iter.close();
+		assertFalse(iter.next());
+		assertEquals(refs - 1, snapshot.getReader().getRefCount());
+	}
+
+	private void checkIterator(HitList expected, int limit) throws Exception {
+		IndexSnapshot snapshot = index.acquire();
+		int refs = snapshot.getReader().getRefCount();
+		LuceneIterator iter = new LuceneIterator(index, snapshot, index.parse("word"), limit);
+		int count = limit > 0 ? limit : expected.size();
+		for (int idx = 0; idx < count; idx++) {
+			assertTrue(iter.next());
+			assertEquals("hit " + idx, expected.id(idx), iter.subject);
+			assertEquals("hit " + idx, expected.score(idx), iter.score, 0);
+		}
+		assertFalse(iter.next());
+		assertEquals(count, iter.size());
+		// the snapshot is released once the iterator is exhausted
+		assertEquals(refs - 1, snapshot.getReader().getRefCount());
+	}
+
+	private HitList searchAll(String query) throws Exception {
+		IndexSnapshot snapshot = index.acquire();
+		try {
+			Query parsed = index.parse(query);
+			LuceneResultsCollector collector = new LuceneResultsCollector(snapshot.getEntityIds());
+			index.search(snapshot.getSearcher(), parsed, null, collector);
+			return collector.getResults();
+		} finally {
+			index.release(snapshot);
+		}
+	}
+
+	static LuceneIndex createIndex(File dataDir) throws IOException {
+		LuceneIndex index = new LuceneIndex("test", dataDir);
+		index.writeProperties();
+		return index;
+	}
+
+	/**
+	 * Adds the documents of a range of entities and refreshes the index. The documents of entities with the
+	 * same remainder modulo 7 have the same text and score the same for "word", entities with an even id
+	 * also have "even" in their text.
+	 */
+	static void addDocuments(LuceneIndex index, long from, long to) throws IOException {
+		IndexWriter writer = index.getWriter();
+		try {
+			EntityIdField idField = index.newIdField();
+			for (long id = from; id < to; id++) {
+				StringBuilder text = new StringBuilder();
+				for (int count = 0; count <= id % 7; count++) {
+					text.append("word ");
+				}
+				text.append(id % 2 == 0 ? "even" : "odd");
+				Document document = new Document();
+				idField.setValue(id);
+				document.add(idField.getField());
+				document.add(new Field(LucenePlugin.FIELD_TEXT, text.toString(), Field.Store.NO,
+						Field.Index.ANALYZED));
+				writer.addDocument(document);
+			}
+			writer.commit();
+		} finally {
+			writer.close();
+		}
+		index.refresh();
+	}
+}
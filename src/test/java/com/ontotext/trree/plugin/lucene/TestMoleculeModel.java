@@ -0,0 +1,333 @@
+package com.ontotext.trree.plugin.lucene;
+
+import com.ontotext.trree.sdk.Entities;
+import com.ontotext.trree.sdk.StatementIterator;
+import com.ontotext.trree.sdk.Statements;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the entities visited when building molecules, with and without the subject-object graph, against
+ * the molecules of the recursive walk: depth-first in the order of the statements, an entity is visited
+ * once with the hops left on reaching it first and stepping into a blank node doesn't take a hop.
+ */
+public class TestMoleculeModel {
+	private static final ValueFactory F = SimpleValueFactory.getInstance();
+	private static final String NS = "http://example.com/";
+
+	// the ids mostly follow the order of the statements of each subject
+	private static final long A = 1;
+	private static final long B = 2;
+	private static final long BNODE1 = 3;
+	private static final long C = 4;
+	private static final long D = 5;
+	private static final long BNODE2 = 6;
+	private static final long E = 7;
+	private static final long LITERAL = 8;
+	private static final long PREDICATE = 9;
+	// a chain of blank nodes between Y and Z
+	private static final long Y = 10;
+	private static final int CHAIN = 100000;
+	private static final long Z = Y + CHAIN + 1;
+
+	private final List<Value> values = new ArrayList<Value>();
+	private final Map<Long, List<long[]>> rows = new HashMap<Long, List<long[]>>();
+	private MoleculeModel model;
+	// overrides the memory for an in-memory graph when not negative
+	private long memoryBudget;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Before
+	public void setUp() {
+		values.clear();
+		rows.clear();
+		values.add(null);
+		for (String name : new String[] { "a", "b", null, "c", "d", null, "e" }) {
+			values.add(name != null ? F.createIRI(NS, name) : F.createBNode());
+		}
+		values.add(F.createLiteral("okapi"));
+		values.add(F.createIRI(NS, "link"));
+		values.add(F.createIRI(NS, "y"));
+		for (int idx = 0; idx < CHAIN; idx++) {
+			values.add(F.createBNode());
+		}
+		values.add(F.createIRI(NS, "z"));
+
+		add(A, B);
+		add(A, BNODE1);
+		add(A, C);
+		add(B, C);
+		add(C, D);
+		// out of id order and twice, e.g. with different predicates
+		add(D, C);
+		add(D, B);
+		add(D, C);
+		add(BNODE1, BNODE2);
+		// a cycle of blank nodes
+		add(BNODE2, BNODE1);
+		add(BNODE2, E);
+		// a cycle back to the centre
+		add(E, A);
+		add(E, LITERAL);
+		for (long id = Y; id < Z; id++) {
+			add(id, id + 1);
+		}
+
+		memoryBudget = -1;
+		model = new MoleculeModel() {
+			@Override
+			long getGraphMemoryBudget() {
+				return memoryBudget >= 0 ? memoryBudget : super.getGraphMemoryBudget();
+			}
+		};
+		model.setDataDir(folder.getRoot());
+		model.setEntities(newEntities());
+		model.setStatements(newStatements());
+		IncludeFilter includeFilter = new IncludeFilter();
+		includeFilter.initialize("centre, uri, literal");
+		model.setIncludeFilter(includeFilter);
+		IndexFilter indexFilter = new IndexFilter();
+		indexFilter.initialize("uri");
+		model.setIndexFilter(indexFilter);
+	}
+
+	@Test
+	public void testCentreOnly() throws Exception {
+		checkMolecule(0, A, "a");
+		checkMolecule(0, E, "e");
+		// blank nodes have no value of their own
+		checkMolecule(0, BNODE1, "");
+	}
+
+	@Test
+	public void testBlankNodesTakeNoHops() throws Exception {
+		checkMolecule(1, A, "a b e c");
+		checkMolecule(1, BNODE1, "e");
+		checkMolecule(1, E, "e a okapi");
+	}
+
+	@Test
+	public void testFirstVisitDecidesHops() throws Exception {
+		// c is reached through b with no hops left first, so d isn't reached through a -> c
+		checkMolecule(2, A, "a b c e okapi");
+		checkMolecule(2, E, "e a b c okapi");
+		checkMolecule(3, A, "a b c d e okapi");
+	}
+
+	@Test
+	public void testLongBlankNodeChain() throws Exception {
+		checkMolecule(1, Y, "y z");
+		checkMolecule(0, Y, "y");
+	}
+
+	@Test
+	public void testNeighboursInIdOrder() throws Exception {
+		// the statements of d are read in the order of the graph row, without the duplicate
+		checkMolecule(1, D, "d b c");
+		// and the fan-out limit keeps the same neighbours
+		model.setMaxFanOut(1);
+		checkMolecule(1, D, "d b");
+	}
+
+	@Test
+	public void testValueCache() throws Exception {
+		ValueCache cache = new ValueCache(4);
+		model.setValueCache(cache);
+		// built twice so that the values are admitted and then served from the cache, which gets full
+		for (int round = 0; round < 2; round++) {
+			checkMolecule(1, A, "a b e c");
+			checkMolecule(3, A, "a b c d e okapi");
+			checkMolecule(2, E, "e a b c okapi");
+		}
+		assertTrue(cache.toString(), cache.getHits() > 0);
+	}
+
+	@Test
+	public void testGraphOnDisk() throws Exception {
+		// no memory for the counts and memory for the counts only, which are then stored on disk
+		for (long budget : new long[] { 0, CsrGraph.requiredMemory(values.size(), 0) }) {
+			memoryBudget = budget;
+			checkMolecule(1, A, "a b e c");
+			checkMolecule(3, A, "a b c d e okapi");
+			checkMolecule(2, E, "e a b c okapi");
+			checkMolecule(1, Y, "y z");
+		}
+	}
+
+	@Test
+	public void testEntitiesAddedAfterFlags() throws Exception {
+		model.setDegree(1);
+		model.initialize();
+		try {
+			EntityBits bits = model.getEntityBits();
+			assertEquals(values.size(), bits.size());
+			assertTrue(bits.covers(Z));
+
+			// an entity added by a transaction after the flags were computed
+			long late = values.size();
+			values.add(F.createLiteral("latecomer"));
+			add(A, late);
+			assertFalse(bits.covers(late));
+			assertFalse(bits.coversIncluded(late));
+
+			// checked directly for its molecule, not taken for an excluded one
+			MoleculeText text = new MoleculeText();
+			assertTrue(model.getMoleculeWoGraph(A, text));
+			assertEquals("a b e c latecomer", text.toString());
+		} finally {
+			model.shutDown();
+		}
+	}
+
+	/**
+	 * Checks the molecule built from the statements and from the graph of a full build.
+	 */
+	private void checkMolecule(int degree, long centre, String expected) throws Exception {
+		model.setDegree(degree);
+		MoleculeText text = new MoleculeText();
+		assertEquals(!expected.isEmpty(), model.getMoleculeWoGraph(centre, text));
+		assertEquals(expected, text.toString());
+
+		model.initialize();
+		try {
+			model.getMolecule(centre, text);
+			assertEquals(expected, text.toString());
+		} finally {
+			model.shutDown();
+		}
+	}
+
+	private void add(long subject, long object) {
+		List<long[]> row = rows.get(subject);
+		if (row == null) {
+			row = new ArrayList<long[]>();
+			rows.put(subject, row);
+		}
+		row.add(new long[] { subject, PREDICATE, object });
+	}
+
+	private Entities newEntities() {
+		return newProxy(Entities.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				String name = method.getName();
+				if (name.equals("size")) {
+					return (long) values.size() - 1;
+				}
+				if (name.equals("getEntityIdSize")) {
+					return 32;
+				}
+				if (name.equals("resolve")) {
+					long id = values.indexOf(args[0]);
+					return id > 0 ? id : 0L;
+				}
+				long id = (Long) args[0];
+				Value value = id > 0 && id < values.size() ? values.get((int) id) : null;
+				if (name.equals("get")) {
+					return value;
+				}
+				if (name.equals("getType")) {
+					if (value == null || value.isIRI()) {
+						return Entities.Type.URI;
+					}
+					return value.isBNode() ? Entities.Type.BNODE : Entities.Type.LITERAL;
+				}
+				if (name.equals("getClass")) {
+					return id;
+				}
+				if (name.equals("getLanguage")) {
+					return null;
+				}
+				throw new UnsupportedOperationException(name);
+			}
+		});
+	}
+
+	private Statements newStatements() {
+		return newProxy(Statements.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (!method.getName().equals("get") || args.length != 4) {
+					throw new UnsupportedOperationException(method.getName());
+				}
+				long subject = (Long) args[0];
+				long object = (Long) args[2];
+				List<long[]> matches = new ArrayList<long[]>();
+				if (subject != 0) {
+					if (rows.containsKey(subject)) {
+						matches.addAll(rows.get(subject));
+					}
+				} else {
+					for (long id = 1; id < values.size(); id++) {
+						if (rows.containsKey(id)) {
+							for (long[] statement : rows.get(id)) {
+								if (object == 0 || statement[2] == object) {
+									matches.add(statement);
+								}
+							}
+						}
+					}
+				}
+				return new ListIterator(matches);
+			}
+		});
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T newProxy(Class<T> type, final InvocationHandler handler) {
+		return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (method.getDeclaringClass() == Object.class) {
+					return method.invoke(handler, args);
+				}
+				return handler.invoke(proxy, method, args);
+			}
+		});
+	}
+
+	private static class ListIterator extends StatementIterator {
+		private final List<long[]> statements;
+		private int next;
+
+		ListIterator(List<long[]> statements) {
+			this.statements = statements;
+		}
+
+		@Override
+		public boolean next() {
+			if (next == statements.size()) {
+				return false;
+			}
+			long[] statement = statements.get(next++);
+			subject = statement[0];
+			predicate = statement[1];
+			object = statement[2];
+			context = 0;
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
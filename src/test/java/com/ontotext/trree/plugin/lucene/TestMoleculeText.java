@@ -0,0 +1,111 @@
+package com.ontotext.trree.plugin.lucene;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that a {@link MoleculeText} reads and hashes the same as the molecule string built by concatenating
+ * the values, so that streaming the text doesn't change the fingerprints of the documents.
+ */
+public class TestMoleculeText {
+	private static final MoleculeText text = new MoleculeText();
+
+	@Test
+	public void testEmpty() {
+		check();
+		check("");
+		check("", "");
+	}
+
+	@Test
+	public void testLeadingEmptyValues() {
+		check("", "first");
+		check("", "", "first", "second");
+		check("", "first", "", "second");
+	}
+
+	@Test
+	public void testEmptyValues() {
+		check("first", "");
+		check("first", "", "second");
+		check("first", "", "", "second", "");
+	}
+
+	@Test
+	public void testLongValues() {
+		char[] chars = new char[10000];
+		Arrays.fill(chars, 'x');
+		String longValue = new String(chars);
+		check(longValue);
+		check("short", longValue, "", longValue);
+	}
+
+	@Test
+	public void testRandomValues() {
+		Random random = new Random(42);
+		for (int round = 0; round < 1000; round++) {
+			List<String> values = new ArrayList<String>();
+			int count = random.nextInt(10);
+			for (int idx = 0; idx < count; idx++) {
+				char[] chars = new char[random.nextInt(4) == 0 ? 0 : random.nextInt(50)];
+				for (int pos = 0; pos < chars.length; pos++) {
+					chars[pos] = (char) random.nextInt(Character.MAX_VALUE);
+				}
+				values.add(new String(chars));
+			}
+			check(values.toArray(new String[values.size()]));
+		}
+	}
+
+	@Test
+	public void testReuse() {
+		check("first", "second");
+		// the text is cleared before a new molecule
+		check("", "third");
+	}
+
+	/**
+	 * Compares the text with the values appended against the string that {@link MoleculeModel} used to
+	 * build: the values separated with a space, the separator only added after a non-empty beginning.
+	 */
+	private static void check(String... values) {
+		StringBuilder expected = new StringBuilder();
+		for (String value : values) {
+			if (expected.length() > 0) {
+				expected.append(' ');
+			}
+			expected.append(value);
+		}
+
+		text.clear();
+		for (String value : values) {
+			text.append(value);
+		}
+
+		String molecule = expected.toString();
+		assertEquals(molecule.hashCode(), text.textHashCode());
+		assertEquals(molecule.length(), text.length());
+		assertEquals(molecule.isEmpty(), text.isEmpty());
+		assertEquals(molecule, text.toString());
+		assertEquals(molecule, read(text));
+		// read again after a rewind, as the analyzer may do
+		text.reset();
+		assertEquals(molecule, read(text));
+	}
+
+	private static String read(MoleculeText text) {
+		StringBuilder builder = new StringBuilder();
+		char[] buffer = new char[7];
+		int count;
+		while ((count = text.read(buffer, 0, buffer.length)) > 0) {
+			builder.append(buffer, 0, count);
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,78 @@
+package com.ontotext.trree.plugin.lucene;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that <code>luc:score</code> gets the score of the iterator of the right pattern when several
+ * iterators of a request are open, and that closed iterators don't provide scores.
+ */
+public class TestRequestScores {
+	private static final float DELTA = 0;
+
+	@Test
+	public void testScoresOfDifferentEntities() {
+		RequestScores scores = new RequestScores();
+		LuceneIterator first = newIterator(scores, new int[] { 1, 2 }, new float[] { 0.9f, 0.5f });
+		LuceneIterator second = newIterator(scores, new int[] { 3, 1 }, new float[] { 0.8f, 0.3f });
+
+		assertTrue(first.next());
+		assertEquals(0.9f, scores.get(1), DELTA);
+		assertEquals(0, scores.get(3), DELTA);
+		assertTrue(second.next());
+		assertEquals(0.9f, scores.get(1), DELTA);
+		assertEquals(0.8f, scores.get(3), DELTA);
+		assertTrue(first.next());
+		// the first iterator has moved on
+		assertEquals(0, scores.get(1), DELTA);
+		assertEquals(0.5f, scores.get(2), DELTA);
+	}
+
+	@Test
+	public void testNestedIteratorsOnTheSameEntity() {
+		RequestScores scores = new RequestScores();
+		LuceneIterator outer = newIterator(scores, new int[] { 1, 2 }, new float[] { 0.9f, 0.5f });
+		assertTrue(outer.next());
+		assertEquals(0.9f, scores.get(1), DELTA);
+
+		// the inner pattern provides the score while it is positioned on the entity
+		LuceneIterator inner = newIterator(scores, new int[] { 1, 4 }, new float[] { 0.2f, 0.1f });
+		assertTrue(inner.next());
+		assertEquals(0.2f, scores.get(1), DELTA);
+		assertTrue(inner.next());
+		assertEquals(0.9f, scores.get(1), DELTA);
+		assertEquals(0.1f, scores.get(4), DELTA);
+		inner.close();
+		assertEquals(0, scores.get(4), DELTA);
+
+		// the outer iterator leaves the entity while an inner one is still on it
+		inner = newIterator(scores, new int[] { 2 }, new float[] { 0.7f });
+		assertTrue(outer.next());
+		assertTrue(inner.next());
+		assertEquals(0.7f, scores.get(2), DELTA);
+		outer.close();
+		assertEquals(0.7f, scores.get(2), DELTA);
+		assertTrue(!inner.next());
+		assertEquals(0, scores.get(2), DELTA);
+	}
+
+	@Test
+	public void testClosedIterators() {
+		RequestScores scores = new RequestScores();
+		LuceneIterator iterator = newIterator(scores, new int[] { 1, 2 }, new float[] { 0.9f, 0.5f });
+		assertTrue(iterator.next());
+		iterator.close();
+		assertEquals(0, scores.get(1), DELTA);
+		// closing again has no effect
+		iterator.close();
+		assertEquals(0, scores.get(1), DELTA);
+	}
+
+	private static LuceneIterator newIterator(RequestScores scores, int[] ids, float[] values) {
+		LuceneIterator iterator = new LuceneIterator(new HitList(ids, values), 0, ids.length);
+		iterator.setRequestScores(scores);
+		return iterator;
+	}
+}
@@ -0,0 +1,186 @@
+package com.ontotext.trree.plugin.lucene;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.ontotext.trree.plugin.lucene.TestCsrGraph.assertRow;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the rows of the molecule graph stored on disk, which is used when the graph doesn't fit in memory.
+ */
+public class TestTableStorage {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private String prefix;
+	private TableStorage storage;
+
+	@Before
+	public void setUp() throws IOException {
+		prefix = new File(folder.getRoot(), "graph").getAbsolutePath();
+	}
+
+	@After
+	public void tearDown() {
+		if (storage != null) {
+			storage.shutDown();
+		}
+	}
+
+	@Test
+	public void testRowsAreSortedWithoutDuplicates() throws IOException {
+		long[][] edges = { { 1, 3 }, { 1, 2 }, { 1, 3 }, { 3, 1 }, { 2, 4 }, { 1, 4 } };
+		build(5, edges, edges);
+		assertRow(storage, 0);
+		assertRow(storage, 1, 2, 3, 4);
+		assertRow(storage, 2, 4);
+		assertRow(storage, 3, 1);
+		assertRow(storage, 4);
+	}
+
+	@Test
+	public void testUncountedObjectsAreDropped() throws IOException {
+		long[][] counted = { { 1, 2 }, { 1, 3 }, { 2, 1 } };
+		long[][] added = { { 1, 2 }, { 2, 1 }, { 2, 4 }, { 2, 3 }, { 3, 2 } };
+		build(5, counted, added);
+		assertRow(storage, 1, 2);
+		assertRow(storage, 2, 1);
+		assertRow(storage, 3);
+	}
+
+	@Test
+	public void testCountsOfInMemoryGraph() throws IOException {
+		long[][] edges = { { 1, 3 }, { 1, 2 }, { 3, 1 } };
+		CsrGraph csr = new CsrGraph(4);
+		for (long[] edge : edges) {
+			csr.count(edge[0]);
+		}
+		storage = new TableStorage(prefix, 4, 4);
+		for (int row = 0; row < 4; row++) {
+			storage.count(row, csr.getCount(row));
+		}
+		storage.allocate();
+		for (long[] edge : edges) {
+			storage.add(edge[0], edge[1]);
+		}
+		storage.complete();
+		assertRow(storage, 1, 2, 3);
+		assertRow(storage, 2);
+		assertRow(storage, 3, 1);
+	}
+
+	@Test
+	public void testLongRowIsSortedInPlace() throws IOException {
+		int length = (1 << 20) + 10;
+		storage = new TableStorage(prefix, 3, length);
+		for (int idx = 0; idx < length; idx++) {
+			storage.count(1);
+		}
+		storage.count(2);
+		storage.allocate();
+		// in descending order, each object twice
+		for (int idx = length / 2; idx > 0; idx--) {
+			storage.add(1, idx);
+			storage.add(1, idx);
+		}
+		storage.add(2, 7);
+		storage.complete();
+
+		MoleculeGraph.Cursor cursor = storage.newCursor();
+		cursor.seek(1);
+		assertEquals(length / 2, cursor.size());
+		for (long expected = 1; expected <= length / 2; expected++) {
+			assertTrue(cursor.hasNext());
+			assertEquals(expected, cursor.next());
+		}
+		assertFalse(cursor.hasNext());
+		assertRow(storage, 2, 7);
+	}
+
+	@Test
+	public void testConcurrentCursors() throws Exception {
+		final int rows = 1000;
+		storage = new TableStorage(prefix, rows, rows * 3);
+		for (int row = 0; row < rows; row++) {
+			for (int idx = 0; idx < row % 50; idx++) {
+				storage.count(row);
+			}
+		}
+		storage.allocate();
+		for (int row = 0; row < rows; row++) {
+			for (int idx = 0; idx < row % 50; idx++) {
+				storage.add(row, row + idx);
+			}
+		}
+		storage.complete();
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+			for (int thread = 0; thread < 8; thread++) {
+				final int first = thread;
+				results.add(executor.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() {
+						MoleculeGraph.Cursor cursor = storage.newCursor();
+						for (int round = 0; round < 20; round++) {
+							for (int row = first; row < rows; row += 3) {
+								cursor.seek(row);
+								for (int idx = 0; idx < row % 50; idx++) {
+									if (!cursor.hasNext() || cursor.next() != row + idx) {
+										return false;
+									}
+								}
+								if (cursor.hasNext()) {
+									return false;
+								}
+							}
+						}
+						return true;
+					}
+				}));
+			}
+			for (Future<Boolean> result : results) {
+				assertTrue(result.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testShutDownDeletesFiles() throws IOException {
+		long[][] edges = { { 1, 2 } };
+		build(3, edges, edges);
+		storage.shutDown();
+		storage = null;
+		assertEquals(0, folder.getRoot().list().length);
+	}
+
+	private void build(long rows, long[][] counted, long[][] added) throws IOException {
+		storage = new TableStorage(prefix, rows, rows);
+		for (long[] edge : counted) {
+			storage.count(edge[0]);
+		}
+		storage.allocate();
+		for (long[] edge : added) {
+			storage.add(edge[0], edge[1]);
+		}
+		storage.complete();
+	}
+}
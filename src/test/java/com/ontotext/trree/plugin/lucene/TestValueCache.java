@@ -0,0 +1,94 @@
+package com.ontotext.trree.plugin.lucene;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the admission and the eviction of the cache of serialized entity values.
+ */
+public class TestValueCache {
+	@Test
+	public void testAdmittedWhenSeenTwice() {
+		ValueCache cache = new ValueCache(16);
+		cache.put(1, "one");
+		assertNull(cache.get(1));
+		cache.put(1, "one");
+		assertEquals("one", cache.get(1).value);
+		// entities that aren't included in molecules are cached too
+		cache.put(2, null);
+		cache.put(2, null);
+		assertNotNull(cache.get(2));
+		assertNull(cache.get(2).value);
+		assertEquals(3, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+
+	@Test
+	public void testEvictionKeepsPopularEntries() {
+		ValueCache cache = new ValueCache(4);
+		for (long id = 1; id <= 4; id++) {
+			cache.put(id, "v" + id);
+			cache.put(id, "v" + id);
+		}
+		assertEquals(4, cache.size());
+		for (int count = 0; count < 3; count++) {
+			cache.get(1);
+			cache.get(2);
+		}
+		cache.put(5, "v5");
+		cache.put(5, "v5");
+		assertEquals(3, cache.size());
+		assertEquals("v1", cache.get(1).value);
+		assertEquals("v2", cache.get(2).value);
+		assertNull(cache.get(3));
+		assertEquals("v5", cache.get(5).value);
+	}
+
+	@Test
+	public void testConcurrentAccess() throws Exception {
+		final ValueCache cache = new ValueCache(100);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+			for (int thread = 0; thread < 4; thread++) {
+				final Random random = new Random(thread);
+				results.add(executor.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() {
+						for (int round = 0; round < 100000; round++) {
+							// skewed towards the small ids, most of them fit in the cache
+							long id = (long) Math.abs(random.nextGaussian() * 20);
+							ValueCache.Entry entry = cache.get(id);
+							if (entry == null) {
+								cache.put(id, "v" + id);
+							} else if (!entry.value.equals("v" + id)) {
+								return false;
+							}
+						}
+						return true;
+					}
+				}));
+			}
+			for (Future<Boolean> result : results) {
+				assertTrue(result.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+		// threads that find the cache full at the same time may each add an entry after the eviction
+		assertTrue(cache.size() <= 100 + 4);
+		assertTrue(cache.toString(), cache.getHits() > cache.getMisses());
+	}
+}